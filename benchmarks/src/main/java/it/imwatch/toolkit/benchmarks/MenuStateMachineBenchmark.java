@@ -0,0 +1,165 @@
+package it.imwatch.toolkit.benchmarks;
+
+import it.imwatch.toolkit.MenuStateMachine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the {@link MenuStateMachine} transition paths, driven by a fake
+ * clock and timer, as the overlay menu drives them on a device.
+ * <p/>
+ * Every path is expected to run in a few nanoseconds and not to allocate:
+ * run with {@code -prof gc} to check the allocation rate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MenuStateMachineBenchmark {
+
+    /** The auto-hide delay, as the menu uses by default. */
+    private static final long AUTO_HIDE_DELAY = 4000;
+
+    private FakeClock mClock;
+    private FakeTimer mTimer;
+    private MenuStateMachine mMachine;
+
+    /** Builds a visible menu, with auto-hiding counting down. */
+    @Setup
+    public void setUp() {
+        mClock = new FakeClock();
+        mTimer = new FakeTimer();
+        mMachine = new MenuStateMachine(mClock, mTimer);
+        mMachine.setAutoHideDelay(AUTO_HIDE_DELAY);
+
+        mMachine.requestShow();
+        mMachine.onShowFinished();
+    }
+
+    /**
+     * A whole hide and show cycle, with both transitions running to their end.
+     *
+     * @return Returns the final state, so that the work isn't eliminated.
+     */
+    @Benchmark
+    public int hideShowCycle() {
+        mMachine.requestHide();
+        mMachine.onHideFinished();
+        mMachine.requestShow();
+        mMachine.onShowFinished();
+        return mMachine.getState();
+    }
+
+    /**
+     * A hide reversed into a show halfway, and back.
+     *
+     * @return Returns the final state, so that the work isn't eliminated.
+     */
+    @Benchmark
+    public int reversedTransitions() {
+        mMachine.requestHide();
+        mMachine.requestShow();
+        mMachine.onHideFinished();
+        mMachine.onShowFinished();
+        return mMachine.getState();
+    }
+
+    /**
+     * Showing the already visible menu, which only extends the auto-hide deadline.
+     *
+     * @return Returns the auto-hide time left, so that the work isn't eliminated.
+     */
+    @Benchmark
+    public long showVisible() {
+        mClock.mNow++;
+        mMachine.requestShow();
+        return mMachine.getAutoHideRemaining();
+    }
+
+    /**
+     * A touch on the buttons: auto-hiding is suspended on the down event, and
+     * resumed on the up event.
+     *
+     * @return Returns the auto-hide time left, so that the work isn't eliminated.
+     */
+    @Benchmark
+    public long touch() {
+        mMachine.suspendAutoHide();
+        mClock.mNow++;
+        mMachine.resumeAutoHide();
+        return mMachine.getAutoHideRemaining();
+    }
+
+    /**
+     * The auto-hide timer firing after the deadline has been extended, which
+     * re-arms it for the time left.
+     *
+     * @return Returns true if the menu must hide, so that the work isn't eliminated.
+     */
+    @Benchmark
+    public boolean autoHideRearm() {
+        mClock.mNow += AUTO_HIDE_DELAY / 2;
+        mMachine.requestShow();
+        mClock.mNow += AUTO_HIDE_DELAY / 2;
+        return mMachine.onTimeout();
+    }
+
+    /**
+     * The auto-hide timer expiring and hiding the menu, then the menu being
+     * shown again.
+     *
+     * @return Returns the final state, so that the work isn't eliminated.
+     */
+    @Benchmark
+    public int autoHideExpiry() {
+        mClock.mNow += AUTO_HIDE_DELAY;
+        if (mMachine.onTimeout()) {
+            mMachine.requestHide();
+            mMachine.onHideFinished();
+        }
+        mMachine.requestShow();
+        mMachine.onShowFinished();
+        return mMachine.getState();
+    }
+
+    /** A clock that only moves when told to. */
+    private static final class FakeClock implements MenuStateMachine.Clock {
+
+        long mNow;
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+    }
+
+    /** A timer that only records how it's armed, and never fires by itself. */
+    private static final class FakeTimer implements MenuStateMachine.Timer {
+
+        long mDelay = -1;
+        int mArmed;
+
+        @Override
+        public void arm(long delay) {
+            mDelay = delay;
+            mArmed++;
+        }
+
+        @Override
+        public void cancel() {
+            mDelay = -1;
+        }
+    }
+}
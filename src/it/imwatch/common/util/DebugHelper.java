@@ -1,17 +1,40 @@
 package it.imwatch.common.util;
 
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Environment;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 
 
 import it.imwatch.toolkit.BuildConfig;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Debugging helper class, contains static methods to determine the debug
  * status.
+ * <p/>
+ * The marker files are checked only once per process, the first time the
+ * debug status is requested (or when {@link #resolveAsync()} is called), and
+ * the result is memoized. After that, the root of the external storage is
+ * watched for the marker files being created or deleted, so that changes are
+ * picked up at runtime without touching the storage again.
+ * <p/>
+ * The storage root can only be watched while it's mounted. Call
+ * {@link #watchMediaState(Context)} once to have the marker files checked
+ * again whenever the external storage is mounted or unmounted, e.g. when
+ * it's not mounted yet at boot.
+ * <p/>
+ * The background checks all run on a single low priority thread, and the
+ * UI thread never waits for them: only the methods documented as checking
+ * the marker files on the calling thread can block.
  */
 public class DebugHelper {
 
@@ -27,6 +50,49 @@ public class DebugHelper {
     /** The directory where the debug and verbose debug files are supposed to be. */
     public static final File FILES_PATH = Environment.getExternalStorageDirectory();
 
+    /** Set once the marker files have been checked. */
+    private static final int FLAG_RESOLVED = 0x1;
+
+    /** Set if the debug file is present. */
+    private static final int FLAG_DEBUG_FILE = 0x2;
+
+    /** Set if the verbose debug file is present. */
+    private static final int FLAG_VERBOSE_FILE = 0x4;
+
+    /** The events on the storage root that can change the marker files status. */
+    private static final int WATCHED_EVENTS = FileObserver.CREATE | FileObserver.DELETE |
+                                              FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
+
+    /** Guards the resolution of the marker files and the observer creation. */
+    private static final Object sLock = new Object();
+
+    /** Guards the creation of the background thread. Never held while touching the storage. */
+    private static final Object sHandlerLock = new Object();
+
+    /** The memoized status of the marker files, as a combination of the FLAG_* values. */
+    private static volatile int sFlags;
+
+    /** True once the background resolution has been requested. */
+    private static final AtomicBoolean sResolving = new AtomicBoolean();
+
+    /** Keeps a strong reference to the observer, or it would stop watching when collected. */
+    private static FileObserver sObserver;
+
+    /** True once the external storage state changes are being followed. */
+    private static final AtomicBoolean sWatchingMedia = new AtomicBoolean();
+
+    /** The handler of the background thread the marker files are checked on, created when first needed. */
+    private static Handler sHandler;
+
+    /** Checks the marker files again, after the external storage has been mounted or unmounted. */
+    private static final Runnable sRecheck = new Runnable() {
+
+        @Override
+        public void run() {
+            resolveAgain();
+        }
+    };
+
     /**
      * Gets a value indicating if the current environment is a debugging environment.
      * This is determined by the value of <code>BuildConfig.DEBUG</code> (which is set
@@ -40,73 +106,259 @@ public class DebugHelper {
      * <code>/imdata</code>.
      * <p/>
      * If the external storage is currently unmounted, the file is assumed not present.
+     * <p/>
+     * The first call made before {@link #resolveAsync()} has completed checks the
+     * marker files on the calling thread; any other call only reads the memoized value.
      *
      * @return Returns <code>true</code> if debug mode is enabled, else <code>false</code>.
      */
     public static boolean isDebug() {
-        String sdcardState = Environment.getExternalStorageState();
-        final File[] files;
+        return isDebug(resolve());
+    }
+
+    /**
+     * Gets a value indicating if the current environment is a verbose debugging environment.
+     * This is determined by the value of by the presence of a file on the root of the
+     * external storage which filename is <code>imWatch-DEBUG-VERBOSE</code>.
+     * <p/>
+     * If the external storage is currently unmounted, the file is assumed not present.
+     * <p/>
+     * The first call made before {@link #resolveAsync()} has completed checks the
+     * marker files on the calling thread; any other call only reads the memoized value.
+     *
+     * @return Returns <code>true</code> if debug mode is enabled, else <code>false</code>.
+     */
+    public static boolean isVerboseDebug() {
+        return (resolve() & FLAG_VERBOSE_FILE) != 0;
+    }
 
-        if (Environment.MEDIA_MOUNTED.equals(sdcardState) ||
-            Environment.MEDIA_MOUNTED_READ_ONLY.equals(sdcardState)) {
+    /**
+     * Gets the last known value of {@link #isDebug()} without ever blocking.
+     * Until the marker files have been checked, they are assumed not present.
+     * This is safe to call on the UI thread, even in tight loops.
+     *
+     * @return Returns <code>true</code> if debug mode is known to be enabled, else
+     *         <code>false</code>.
+     */
+    public static boolean peekDebug() {
+        return isDebug(sFlags);
+    }
 
-            files = FILES_PATH.listFiles(new FilenameFilter() {
+    /**
+     * Gets the last known value of {@link #isVerboseDebug()} without ever blocking.
+     * Until the marker files have been checked, they are assumed not present.
+     * This is safe to call on the UI thread, even in tight loops.
+     *
+     * @return Returns <code>true</code> if verbose debug mode is known to be enabled,
+     *         else <code>false</code>.
+     */
+    public static boolean peekVerboseDebug() {
+        return (sFlags & FLAG_VERBOSE_FILE) != 0;
+    }
 
-                @Override
-                public boolean accept(File dir, String filename) {
-                    return dir.getAbsolutePath().equals(FILES_PATH.getAbsolutePath()) &&
-                           filename.equals(DEBUG_FILE);
-                }
-            });
+    /**
+     * Checks the marker files on a background thread, if that hasn't been done yet.
+     * Returns immediately; use {@link #peekDebug()} and {@link #peekVerboseDebug()}
+     * to read the status without blocking in the meantime.
+     */
+    public static void resolveAsync() {
+        if ((sFlags & FLAG_RESOLVED) != 0 || !sResolving.compareAndSet(false, true)) {
+            return;
         }
-        else {
-            files = new File[0];
+
+        getHandler().post(new Runnable() {
+
+            @Override
+            public void run() {
+                resolve();
+            }
+        });
+    }
+
+    /**
+     * Checks the marker files again, on a background thread, whenever the
+     * external storage is mounted or unmounted. Only the first call has any
+     * effect: the receiver is registered on the application context, for the
+     * lifetime of the process. Never blocks on the marker files checks.
+     * <p/>
+     * A burst of storage events only results in one check: a check that
+     * hasn't started yet when another event comes in is not repeated.
+     *
+     * @param context Any context of the application.
+     */
+    public static void watchMediaState(Context context) {
+        if (!sWatchingMedia.compareAndSet(false, true)) {
+            return;
         }
 
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        filter.addDataScheme("file");
+
+        // Some contexts, e.g. the layout editor and test ones, have no application context
+        final Context appContext = context.getApplicationContext();
+        (appContext != null ? appContext : context).registerReceiver(new BroadcastReceiver() {
+
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // Broadcasts are received on the main thread, so the pending check can't start meanwhile
+                final Handler handler = getHandler();
+                handler.removeCallbacks(sRecheck);
+                handler.post(sRecheck);
+            }
+        }, filter);
+    }
+
+    /**
+     * Gets the handler of the background thread the marker files are checked
+     * on, starting the thread if needed. The thread lives as long as the process.
+     *
+     * @return Returns the background thread handler.
+     */
+    private static Handler getHandler() {
+        synchronized (sHandlerLock) {
+            if (sHandler == null) {
+                final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                sHandler = new Handler(thread.getLooper());
+            }
+            return sHandler;
+        }
+    }
+
+    /**
+     * Computes the debug status from the marker files status.
+     *
+     * @param flags The marker files status.
+     *
+     * @return Returns <code>true</code> if debug mode is enabled, else <code>false</code>.
+     */
+    private static boolean isDebug(int flags) {
         // Disable IDEA's inspections that would want to simplify the value
         // (from their perspective, BuildConfig.DEBUG has a constant value)
         //noinspection ConstantConditions,PointlessBooleanExpression
-        final boolean debug = !BuildConfig.DEBUG || files.length > 0 ||  isVerboseDebug();
+        return !BuildConfig.DEBUG || (flags & (FLAG_DEBUG_FILE | FLAG_VERBOSE_FILE)) != 0;
+    }
 
-        if (debug) Log.i(TAG, "Debug mode is active.");
+    /**
+     * Checks the marker files and starts watching the storage root, unless
+     * it has already been done.
+     *
+     * @return Returns the marker files status.
+     */
+    private static int resolve() {
+        int flags = sFlags;
+        if ((flags & FLAG_RESOLVED) != 0) {
+            return flags;
+        }
 
-        return debug;
+        synchronized (sLock) {
+            flags = sFlags;
+            if ((flags & FLAG_RESOLVED) == 0) {
+                flags = watchAndCheck();
+            }
+        }
+
+        return flags;
     }
 
     /**
-     * Gets a value indicating if the current environment is a verbose debugging environment.
-     * This is determined by the value of by the presence of a file on the root of the
-     * external storage which filename is <code>imWatch-DEBUG-VERBOSE</code>.
-     * <p/>
-     * If the external storage is currently unmounted, the file is assumed not present.
+     * Checks the marker files again and restarts watching the storage root,
+     * after the external storage has been mounted or unmounted. The previous
+     * status stays readable until the new one is known.
+     */
+    private static void resolveAgain() {
+        synchronized (sLock) {
+            if (sObserver != null) {
+                sObserver.stopWatching();
+            }
+            watchAndCheck();
+        }
+    }
+
+    /**
+     * Starts watching the storage root and checks the marker files. Must be
+     * called while holding the lock.
      *
-     * @return Returns <code>true</code> if debug mode is enabled, else <code>false</code>.
+     * @return Returns the marker files status.
      */
-    public static boolean isVerboseDebug() {
-        String sdcardState = Environment.getExternalStorageState();
-        final File[] files;
+    private static int watchAndCheck() {
+        // Start watching before checking, so that no change can be missed.
+        // This silently does nothing if the storage isn't mounted.
+        sObserver = new MarkerFilesObserver();
+        sObserver.startWatching();
 
-        if (Environment.MEDIA_MOUNTED.equals(sdcardState) ||
-            Environment.MEDIA_MOUNTED_READ_ONLY.equals(sdcardState)) {
+        final int flags = checkMarkerFiles() | FLAG_RESOLVED;
+        if (flags != sFlags) {
+            sFlags = flags;
+            logStatus(flags);
+        }
+        return flags;
+    }
 
-            files = FILES_PATH.listFiles(new FilenameFilter() {
+    /**
+     * Checks for the presence of the marker files. This only looks up the two
+     * files by name, instead of listing the whole storage root.
+     *
+     * @return Returns the marker files status, without the resolved flag.
+     */
+    private static int checkMarkerFiles() {
+        String sdcardState = Environment.getExternalStorageState();
 
-                @Override
-                public boolean accept(File dir, String filename) {
-                    return dir.getAbsolutePath().equals(FILES_PATH.getAbsolutePath()) &&
-                           filename.equals(VERBOSE_DEBUG_FILE);
-                }
-            });
+        if (!Environment.MEDIA_MOUNTED.equals(sdcardState) &&
+            !Environment.MEDIA_MOUNTED_READ_ONLY.equals(sdcardState)) {
+            return 0;
         }
-        else {
-            files = new File[0];
+
+        int flags = 0;
+        if (new File(FILES_PATH, DEBUG_FILE).isFile()) flags |= FLAG_DEBUG_FILE;
+        if (new File(FILES_PATH, VERBOSE_DEBUG_FILE).isFile()) flags |= FLAG_VERBOSE_FILE;
+
+        return flags;
+    }
+
+    /**
+     * Logs the debug status.
+     *
+     * @param flags The marker files status.
+     */
+    private static void logStatus(int flags) {
+        if (isDebug(flags)) Log.i(TAG, "Debug mode is active.");
+        if ((flags & FLAG_VERBOSE_FILE) != 0) Log.i(TAG, "Verbose debug mode is active.");
+    }
+
+    /** Updates the memoized status when the marker files are created or deleted. */
+    private static class MarkerFilesObserver extends FileObserver {
+
+        MarkerFilesObserver() {
+            super(FILES_PATH.getAbsolutePath(), WATCHED_EVENTS);
         }
 
-        final boolean verbose = files.length > 0;
+        @Override
+        public void onEvent(int event, String path) {
+            final int flag;
+            if (DEBUG_FILE.equals(path)) {
+                flag = FLAG_DEBUG_FILE;
+            }
+            else if (VERBOSE_DEBUG_FILE.equals(path)) {
+                flag = FLAG_VERBOSE_FILE;
+            }
+            else {
+                return;
+            }
 
-        if (verbose) Log.i(TAG, "Verbose debug mode is active.");
+            final boolean present = (event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0;
 
-        return verbose;
+            synchronized (sLock) {
+                final int flags = present ? sFlags | flag : sFlags & ~flag;
+                if (flags != sFlags) {
+                    sFlags = flags;
+                    logStatus(flags);
+                }
+            }
+        }
     }
 }
-        
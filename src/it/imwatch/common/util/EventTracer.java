@@ -0,0 +1,164 @@
+package it.imwatch.common.util;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, in-memory trace of diagnostic events, meant to replace
+ * logging on hot paths.
+ * <p/>
+ * Each event is a record of primitives: an event ID, a timestamp and two
+ * int arguments, stored in a ring buffer made of parallel arrays. Recording
+ * an event takes a few nanoseconds, never blocks and never allocates, so
+ * tracing doesn't change the timings being investigated. The oldest events
+ * are overwritten when the buffer is full. The trace is only formatted when
+ * it's dumped, on demand.
+ * <p/>
+ * Any thread can record events concurrently: each one claims its slot with
+ * an atomic increment. A dump taken while events are being recorded is
+ * best-effort, and skips the records that are being overwritten. Each slot
+ * works as a sequence lock: its sequence number is invalidated before the
+ * record is written and published after it with ordered stores, and a record
+ * is only dumped if the sequence read before and after it matches.
+ */
+public final class EventTracer {
+
+    private final String mName;
+    private final String[] mEventNames;
+    private final int mMask;
+
+    private final AtomicLongArray mSequences;
+    private final AtomicLongArray mTimestamps;
+    /** The event ID and the two arguments of each record, three ints per slot. */
+    private final AtomicIntegerArray mValues;
+
+    private final AtomicLong mCursor = new AtomicLong();
+
+    /**
+     * Initializes a tracer.
+     *
+     * @param name       The tracer name, used when dumping.
+     * @param capacity   The number of events kept. Must be a power of two.
+     * @param eventNames The event names, indexed by event ID, used when dumping.
+     */
+    public EventTracer(String name, int capacity, String[] eventNames) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("The capacity must be a positive power of two.");
+        }
+
+        mName = name;
+        mEventNames = eventNames;
+        mMask = capacity - 1;
+
+        mSequences = new AtomicLongArray(capacity);
+        mTimestamps = new AtomicLongArray(capacity);
+        mValues = new AtomicIntegerArray(capacity * 3);
+        for (int i = 0; i < capacity; i++) {
+            mSequences.set(i, -1L);
+        }
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param event The event ID.
+     * @param arg1  The first argument.
+     * @param arg2  The second argument.
+     */
+    public void trace(int event, int arg1, int arg2) {
+        final long sequence = mCursor.getAndIncrement();
+        final int slot = (int) (sequence & mMask);
+
+        // Invalidate the slot while it's being written. The ordered stores
+        // that follow can't be seen before this one, nor after the publication
+        mSequences.set(slot, -1L);
+        mTimestamps.lazySet(slot, System.nanoTime());
+        final int index = slot * 3;
+        mValues.lazySet(index, event);
+        mValues.lazySet(index + 1, arg1);
+        mValues.lazySet(index + 2, arg2);
+        mSequences.lazySet(slot, sequence);
+    }
+
+    /** Drops all the recorded events. */
+    public void clear() {
+        for (int i = 0; i <= mMask; i++) {
+            mSequences.set(i, -1L);
+        }
+    }
+
+    /**
+     * Dumps the recorded events to the log, oldest first.
+     *
+     * @param tag The log tag.
+     */
+    public void dump(String tag) {
+        final StringBuilder builder = new StringBuilder(64);
+        final long end = mCursor.get();
+
+        for (long sequence = Math.max(0L, end - mMask - 1); sequence < end; sequence++) {
+            builder.setLength(0);
+            if (formatRecord(sequence, builder)) {
+                Log.d(tag, builder.toString());
+            }
+        }
+    }
+
+    /**
+     * Dumps the recorded events to a writer, oldest first.
+     *
+     * @param writer The writer.
+     */
+    public void dump(PrintWriter writer) {
+        final StringBuilder builder = new StringBuilder(64);
+        final long end = mCursor.get();
+
+        for (long sequence = Math.max(0L, end - mMask - 1); sequence < end; sequence++) {
+            builder.setLength(0);
+            if (formatRecord(sequence, builder)) {
+                writer.println(builder);
+            }
+        }
+    }
+
+    /**
+     * Formats a record, if it's still in the buffer.
+     *
+     * @param sequence The record sequence number.
+     * @param builder  The builder to format the record into.
+     *
+     * @return Returns true if the record has been formatted, false if it has
+     *         been overwritten or is being written.
+     */
+    private boolean formatRecord(long sequence, StringBuilder builder) {
+        final int slot = (int) (sequence & mMask);
+        if (mSequences.get(slot) != sequence) {
+            return false;
+        }
+
+        final long timestamp = mTimestamps.get(slot);
+        final int index = slot * 3;
+        final int event = mValues.get(index);
+        final int arg1 = mValues.get(index + 1);
+        final int arg2 = mValues.get(index + 2);
+
+        if (mSequences.get(slot) != sequence) {
+            // Overwritten while we were reading it
+            return false;
+        }
+
+        builder.append(mName).append(' ').append(timestamp / 1000L).append("us ");
+        if (event >= 0 && event < mEventNames.length) {
+            builder.append(mEventNames[event]);
+        }
+        else {
+            builder.append('#').append(event);
+        }
+        builder.append(' ').append(Integer.toHexString(arg1)).append(' ').append(arg2);
+        return true;
+    }
+}
@@ -0,0 +1,140 @@
+package it.imwatch.toolkit;
+
+/**
+ * Picks the overlay menu transitions quality from the frame timings of
+ * the previous transitions.
+ * <p/>
+ * The quality tiers go from {@link OverlayMenu#ANIMATION_QUALITY_FULL} to
+ * {@link OverlayMenu#ANIMATION_QUALITY_INSTANT}. The governor steps down one
+ * tier after a few consecutive transitions that dropped too many frames, and
+ * back up one tier after a longer streak of smooth ones, so that a single
+ * hiccup doesn't change anything and the tier doesn't oscillate. Transitions
+ * too short to be measured, such as the instant ones, don't count: at the
+ * instant tier, the governor probes the tier above after a number of them.
+ * <p/>
+ * This class has no Android dependencies, and is not thread safe.
+ */
+final class AnimationQualityGovernor {
+
+    /** A transition is janky if it dropped more than this fraction of its frames. */
+    private static final float JANKY_DROP_RATIO = 0.2f;
+
+    /** A transition is smooth if it dropped less than this fraction of its frames. */
+    private static final float SMOOTH_DROP_RATIO = 0.05f;
+
+    /** The number of consecutive janky transitions that steps the quality down. */
+    private static final int STEP_DOWN_STREAK = 2;
+
+    /** The number of consecutive smooth transitions that steps the quality up. */
+    private static final int STEP_UP_STREAK = 4;
+
+    /** The minimum number of frames a transition needs to be measured. */
+    private static final int MIN_FRAMES = 4;
+
+    /** The number of instant transitions after which the tier above is probed. */
+    private static final int PROBE_STREAK = 8;
+
+    private int mTier = OverlayMenu.ANIMATION_QUALITY_FULL;
+    private int mBest = OverlayMenu.ANIMATION_QUALITY_FULL;
+    private int mWorst = OverlayMenu.ANIMATION_QUALITY_INSTANT;
+    private int mJankyStreak;
+    private int mSmoothStreak;
+    private int mInstantStreak;
+
+    /**
+     * Sets the range the tier can move in. The current tier is clamped to it.
+     *
+     * @param best  The best quality tier.
+     * @param worst The worst quality tier. Must not be better than {@code best}.
+     */
+    void setBounds(int best, int worst) {
+        mBest = best;
+        mWorst = worst;
+        mTier = Math.max(best, Math.min(worst, mTier));
+        resetStreaks();
+    }
+
+    /**
+     * Gets the best quality tier the governor can pick.
+     *
+     * @return Returns the best quality tier.
+     */
+    int getBest() {
+        return mBest;
+    }
+
+    /**
+     * Gets the worst quality tier the governor can pick.
+     *
+     * @return Returns the worst quality tier.
+     */
+    int getWorst() {
+        return mWorst;
+    }
+
+    /**
+     * Gets a value indicating whether the tier can change, that is whether
+     * the transitions frame timings need to be measured at all.
+     *
+     * @return Returns true if the bounds leave more than one tier.
+     */
+    boolean isAdaptive() {
+        return mBest != mWorst;
+    }
+
+    /**
+     * Gets the current quality tier.
+     *
+     * @return Returns the current quality tier.
+     */
+    int getTier() {
+        return mTier;
+    }
+
+    /**
+     * Updates the tier with the frame timings of a finished transition.
+     *
+     * @param frames        The number of frames drawn.
+     * @param droppedFrames The number of frames dropped.
+     */
+    void onTransitionFinished(int frames, int droppedFrames) {
+        if (frames < MIN_FRAMES) {
+            if (mTier == OverlayMenu.ANIMATION_QUALITY_INSTANT && ++mInstantStreak >= PROBE_STREAK) {
+                setTier(mTier - 1);
+            }
+            return;
+        }
+
+        final float dropRatio = (float) droppedFrames / (frames + droppedFrames);
+        if (dropRatio > JANKY_DROP_RATIO) {
+            mSmoothStreak = 0;
+            if (++mJankyStreak >= STEP_DOWN_STREAK) {
+                setTier(mTier + 1);
+            }
+        }
+        else if (dropRatio < SMOOTH_DROP_RATIO) {
+            mJankyStreak = 0;
+            if (++mSmoothStreak >= STEP_UP_STREAK) {
+                setTier(mTier - 1);
+            }
+        }
+        // In between, keep the tier and the streaks as they are
+    }
+
+    /**
+     * Moves to a tier, within the bounds, and starts counting the streaks again.
+     *
+     * @param tier The new tier.
+     */
+    private void setTier(int tier) {
+        mTier = Math.max(mBest, Math.min(mWorst, tier));
+        resetStreaks();
+    }
+
+    /** Resets the janky, smooth and instant transition streaks. */
+    private void resetStreaks() {
+        mJankyStreak = 0;
+        mSmoothStreak = 0;
+        mInstantStreak = 0;
+    }
+}
@@ -0,0 +1,276 @@
+package it.imwatch.toolkit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Process-wide scheduler for the overlay menus auto-hiding timeouts.
+ * <p/>
+ * All the menus register their timeouts in a single hashed timer wheel,
+ * whose slots are keyed by the timeouts deadline. Arming, re-arming and
+ * cancelling a timeout are O(1) operations that don't allocate anything,
+ * and the main looper holds at most one pending message, no matter how
+ * many menus are alive: the wheel is only ticked when the next non-empty
+ * slot is due.
+ * <p/>
+ * Timeouts fire with a resolution of {@link #TICK_DURATION} milliseconds,
+ * never before their deadline. This class must only be used from the
+ * main thread.
+ */
+final class AutoHideScheduler {
+
+    /** The duration of a wheel tick, in milliseconds. */
+    static final int TICK_DURATION = 50;
+
+    /** The number of slots in the wheel. Must be a power of two. */
+    private static final int WHEEL_SIZE = 64;
+
+    /** The mask to map a tick onto its wheel slot. */
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /** Indicates that no tick message is pending. */
+    private static final long NO_TICK = Long.MAX_VALUE;
+
+    private static AutoHideScheduler sInstance;
+
+    private final Handler mHandler;
+    private final Runnable mTickRunnable;
+
+    /** The heads of the slots timeouts lists. */
+    private final Timeout[] mWheel = new Timeout[WHEEL_SIZE];
+
+    /** The last tick whose slot has been processed. */
+    private long mLastTick;
+
+    /** The tick the pending message will process, or NO_TICK. */
+    private long mPendingTick = NO_TICK;
+
+    /** The number of timeouts currently armed. */
+    private int mArmedCount;
+
+    /**
+     * Gets the process-wide scheduler instance, creating it if needed.
+     *
+     * @return Returns the scheduler instance.
+     */
+    static synchronized AutoHideScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new AutoHideScheduler(Looper.getMainLooper());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Drops the shared instance, so that the next {@link #getInstance()} call
+     * creates a new one. Only meant for the tests, whose looper drops the
+     * pending messages, including the tick, between two tests. The menus
+     * holding on to the old instance keep using it.
+     */
+    static synchronized void resetInstance() {
+        sInstance = null;
+    }
+
+    private AutoHideScheduler(Looper looper) {
+        mHandler = new Handler(looper);
+        mTickRunnable = new Runnable() {
+
+            @Override
+            public void run() {
+                mPendingTick = NO_TICK;
+                tick(SystemClock.uptimeMillis());
+            }
+        };
+    }
+
+    /**
+     * Arms a timeout so that it fires after the specified delay. If the
+     * timeout is already armed, it is re-armed with the new delay.
+     *
+     * @param timeout The timeout to arm.
+     * @param delay   The delay, in milliseconds.
+     */
+    void arm(Timeout timeout, long delay) {
+        if (timeout.isArmed()) {
+            unlink(timeout);
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        if (mArmedCount == 0) {
+            // The wheel was idle, the slots it skipped are all empty
+            mLastTick = now / TICK_DURATION;
+        }
+
+        timeout.mDeadline = now + delay;
+
+        // Round the deadline up to the next tick, but never in a slot that's already been processed
+        long deadlineTick = (timeout.mDeadline + TICK_DURATION - 1) / TICK_DURATION;
+        if (deadlineTick <= mLastTick) {
+            deadlineTick = mLastTick + 1;
+        }
+
+        link(timeout, (int) (deadlineTick & WHEEL_MASK));
+
+        if (deadlineTick - mLastTick < WHEEL_SIZE) {
+            scheduleTick(deadlineTick);
+        }
+        else {
+            // It will be found when its slot comes around, just keep the wheel turning
+            scheduleTick(mLastTick + WHEEL_SIZE);
+        }
+    }
+
+    /**
+     * Cancels a timeout. Does nothing if the timeout is not armed.
+     *
+     * @param timeout The timeout to cancel.
+     */
+    void cancel(Timeout timeout) {
+        if (timeout.isArmed()) {
+            unlink(timeout);
+
+            if (mArmedCount == 0 && mPendingTick != NO_TICK) {
+                mHandler.removeCallbacks(mTickRunnable);
+                mPendingTick = NO_TICK;
+            }
+        }
+    }
+
+    /**
+     * Processes all the slots up to the current time, firing the expired
+     * timeouts, then schedules the next tick if needed.
+     *
+     * @param now The current time, in milliseconds.
+     */
+    private void tick(long now) {
+        final long nowTick = now / TICK_DURATION;
+
+        // After a long stall, a whole rotation is enough to visit every slot
+        long tick = Math.max(mLastTick + 1, nowTick - WHEEL_MASK);
+
+        for (; tick <= nowTick && mArmedCount > 0; tick++) {
+            mLastTick = tick;
+            final int slot = (int) (tick & WHEEL_MASK);
+
+            Timeout node = mWheel[slot];
+            while (node != null) {
+                if (node.mDeadline <= now) {
+                    unlink(node);
+                    node.mCallback.run();
+
+                    // The callback may have changed the list
+                    node = mWheel[slot];
+                }
+                else {
+                    node = node.mNext;
+                }
+            }
+        }
+        mLastTick = nowTick;
+
+        if (mArmedCount > 0) {
+            scheduleTick(findNextTick());
+        }
+    }
+
+    /**
+     * Finds the next tick whose slot is not empty, within a wheel rotation.
+     *
+     * @return Returns the next tick to process.
+     */
+    private long findNextTick() {
+        for (long tick = mLastTick + 1; tick <= mLastTick + WHEEL_SIZE; tick++) {
+            if (mWheel[(int) (tick & WHEEL_MASK)] != null) {
+                return tick;
+            }
+        }
+        return mLastTick + WHEEL_SIZE;
+    }
+
+    /**
+     * Makes sure the wheel is ticked no later than the specified tick.
+     *
+     * @param tick The tick to process.
+     */
+    private void scheduleTick(long tick) {
+        if (tick >= mPendingTick) {
+            return;
+        }
+
+        if (mPendingTick != NO_TICK) {
+            mHandler.removeCallbacks(mTickRunnable);
+        }
+
+        mPendingTick = tick;
+        mHandler.postAtTime(mTickRunnable, tick * TICK_DURATION);
+    }
+
+    /**
+     * Adds a timeout at the head of a slot list.
+     *
+     * @param timeout The timeout to add.
+     * @param slot    The slot to add it to.
+     */
+    private void link(Timeout timeout, int slot) {
+        final Timeout head = mWheel[slot];
+        timeout.mSlot = slot;
+        timeout.mPrev = null;
+        timeout.mNext = head;
+        if (head != null) {
+            head.mPrev = timeout;
+        }
+        mWheel[slot] = timeout;
+        mArmedCount++;
+    }
+
+    /**
+     * Removes a timeout from its slot list.
+     *
+     * @param timeout The timeout to remove.
+     */
+    private void unlink(Timeout timeout) {
+        if (timeout.mPrev != null) {
+            timeout.mPrev.mNext = timeout.mNext;
+        }
+        else {
+            mWheel[timeout.mSlot] = timeout.mNext;
+        }
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrev = timeout.mPrev;
+        }
+
+        timeout.mPrev = timeout.mNext = null;
+        timeout.mSlot = -1;
+        mArmedCount--;
+    }
+
+    /**
+     * A timeout that can be armed on the scheduler. Each menu owns one
+     * and keeps reusing it, so that arming it never allocates.
+     */
+    static final class Timeout {
+
+        private final Runnable mCallback;
+        private Timeout mPrev, mNext;
+        private int mSlot = -1;
+        private long mDeadline;
+
+        /**
+         * Initializes a timeout.
+         *
+         * @param callback The callback to run when the timeout fires.
+         */
+        Timeout(Runnable callback) {
+            mCallback = callback;
+        }
+
+        /**
+         * Gets a value indicating whether the timeout is armed.
+         *
+         * @return Returns true if the timeout is armed and has not fired yet.
+         */
+        boolean isArmed() {
+            return mSlot >= 0;
+        }
+    }
+}
@@ -0,0 +1,851 @@
+package it.imwatch.toolkit;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.Region;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Bundle;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.SoundEffectConstants;
+import android.view.View;
+import android.view.ViewConfiguration;
+import android.view.ViewParent;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityManager;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityNodeProvider;
+import android.widget.Button;
+
+/**
+ * A single view that renders both overlay menu buttons, used by the
+ * {@link OverlayMenu} compact rendering mode instead of two ImageButtons.
+ * <p/>
+ * The buttons backgrounds and icons are drawn directly on the canvas, and
+ * the view does its own hit-testing, pressed state tracking and click
+ * dispatching. This saves two views per menu, with their state, which adds
+ * up when many menus are alive.
+ * <p/>
+ * The buttons are still reachable without touching them: the D-pad moves
+ * the focus between them and clicks them, and on Android 4.1+ they are
+ * exposed to the accessibility services as two virtual views, each with
+ * its own content description, that can be explored by touch and clicked.
+ * Before Android 4.1, the accessibility events of the bar carry the
+ * description of the button they're about.
+ */
+final class CompactMenuBar extends View {
+
+    /** Indicates no button. */
+    static final int NONE = -1;
+
+    /** Indicates the left button. */
+    static final int LEFT = 0;
+
+    /** Indicates the right button. */
+    static final int RIGHT = 1;
+
+    private final Drawable[] mBackgrounds = new Drawable[2];
+    private final Drawable[] mIcons = new Drawable[2];
+    private final OnClickListener[] mClickListeners = new OnClickListener[2];
+    private final CharSequence[] mDescriptions = new CharSequence[2];
+    private final int[] mVisibility = { GONE, GONE };
+    private final Rect[] mBounds = { new Rect(), new Rect() };
+    private final Rect mPadding = new Rect();
+    private final Rect mScreenBounds = new Rect();
+    private final int[] mLocation = new int[2];
+    private final int mTouchSlop;
+    private final AccessibilityManager mAccessibilityManager;
+
+    private int mPressedButton = NONE;
+    private int mFocusedButton = NONE;
+    private int mHoveredButton = NONE;
+    private int mAccessibilityFocusedButton = NONE;
+    private int mEventButton = NONE;
+    private AccessibilityNodeProvider mNodeProvider;
+
+    /**
+     * Initializes the compact menu bar.
+     *
+     * @param context The context to initialize the bar into.
+     */
+    CompactMenuBar(Context context) {
+        super(context);
+
+        mTouchSlop = ViewConfiguration.get(context).getScaledTouchSlop();
+        mAccessibilityManager = (AccessibilityManager) context.getSystemService(Context.ACCESSIBILITY_SERVICE);
+        setButtonBackground(LEFT, MenuDrawableCache.obtain(context, R.drawable.menu_bg_left));
+        setButtonBackground(RIGHT, MenuDrawableCache.obtain(context, R.drawable.menu_bg_right));
+        setFocusable(true);
+    }
+
+    /**
+     * Sets the content description of a button, read by the accessibility
+     * services in place of its icon.
+     *
+     * @param button      The button, either {@link #LEFT} or {@link #RIGHT}.
+     * @param description The content description, or null.
+     */
+    void setButtonContentDescription(int button, CharSequence description) {
+        mDescriptions[button] = description;
+    }
+
+    /**
+     * Gets the content description of a button.
+     *
+     * @param button The button, either {@link #LEFT} or {@link #RIGHT}.
+     *
+     * @return Returns the content description, or null.
+     */
+    CharSequence getButtonContentDescription(int button) {
+        return mDescriptions[button];
+    }
+
+    /**
+     * Sets the icon of a button.
+     *
+     * @param button The button, either {@link #LEFT} or {@link #RIGHT}.
+     * @param icon   The icon, or null.
+     */
+    void setIcon(int button, Drawable icon) {
+        final Drawable old = mIcons[button];
+        if (old == icon) {
+            return;
+        }
+
+        if (old != null) {
+            old.setCallback(null);
+        }
+        if (icon != null) {
+            icon.setCallback(this);
+            icon.setState(getButtonState(button));
+        }
+        mIcons[button] = icon;
+
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * Gets the icon of a button.
+     *
+     * @param button The button, either {@link #LEFT} or {@link #RIGHT}.
+     *
+     * @return Returns the icon, or null.
+     */
+    Drawable getIcon(int button) {
+        return mIcons[button];
+    }
+
+    /**
+     * Sets the visibility of a button.
+     *
+     * @param button     The button, either {@link #LEFT} or {@link #RIGHT}.
+     * @param visibility The button visibility. {@link View#INVISIBLE} keeps its
+     *                   space in the layout, {@link View#GONE} doesn't.
+     */
+    void setButtonVisibility(int button, int visibility) {
+        final int old = mVisibility[button];
+        if (old == visibility) {
+            return;
+        }
+
+        mVisibility[button] = visibility;
+        if (visibility != VISIBLE) {
+            if (mPressedButton == button) {
+                setPressedButton(NONE);
+            }
+            if (mFocusedButton == button) {
+                // Move the focus to the other button, if it can take it
+                setFocusedButton(getNextVisibleButton(NONE, button == LEFT));
+            }
+            if (mHoveredButton == button) {
+                mHoveredButton = NONE;
+            }
+            if (mAccessibilityFocusedButton == button) {
+                mAccessibilityFocusedButton = NONE;
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // The virtual views have changed
+            sendAccessibilityEvent(AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED);
+        }
+
+        if (old == GONE || visibility == GONE) {
+            requestLayout();
+            invalidate();
+        }
+        else {
+            invalidate(mBounds[button]);
+        }
+    }
+
+    /**
+     * Gets the visibility of a button.
+     *
+     * @param button The button, either {@link #LEFT} or {@link #RIGHT}.
+     *
+     * @return Returns the button visibility.
+     */
+    int getButtonVisibility(int button) {
+        return mVisibility[button];
+    }
+
+    /**
+     * Sets the click listener of a button.
+     *
+     * @param button   The button, either {@link #LEFT} or {@link #RIGHT}.
+     * @param listener The click listener, or null.
+     */
+    void setOnButtonClickListener(int button, OnClickListener listener) {
+        mClickListeners[button] = listener;
+    }
+
+    /**
+     * Gets the bounds of a button, in this view coordinates.
+     *
+     * @param button The button, either {@link #LEFT} or {@link #RIGHT}.
+     *
+     * @return Returns the button bounds. Must not be modified.
+     */
+    Rect getButtonBounds(int button) {
+        return mBounds[button];
+    }
+
+    /**
+     * Finds the visible button at a given point.
+     *
+     * @param x The point X coordinate, in this view coordinates.
+     * @param y The point Y coordinate, in this view coordinates.
+     *
+     * @return Returns {@link #LEFT}, {@link #RIGHT} or {@link #NONE}.
+     */
+    int getButtonAt(float x, float y) {
+        for (int i = LEFT; i <= RIGHT; i++) {
+            if (mVisibility[i] == VISIBLE && mBounds[i].contains((int) x, (int) y)) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = 0, height = 0;
+        for (int i = LEFT; i <= RIGHT; i++) {
+            if (mVisibility[i] != GONE) {
+                width += getButtonWidth(i);
+                height = Math.max(height, getButtonHeight(i));
+            }
+        }
+
+        final int widthMode = MeasureSpec.getMode(widthMeasureSpec);
+        if (widthMode != MeasureSpec.UNSPECIFIED) {
+            // Like a match_parent view, the bar spans all the space it's given
+            width = MeasureSpec.getSize(widthMeasureSpec);
+        }
+
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        final int w = r - l, h = b - t;
+        final int leftWidth = getButtonWidth(LEFT);
+        final int rightWidth = getButtonWidth(RIGHT);
+        mBounds[LEFT].set(0, h - getButtonHeight(LEFT), leftWidth, h);
+        mBounds[RIGHT].set(w - rightWidth, h - getButtonHeight(RIGHT), w, h);
+
+        for (int i = LEFT; i <= RIGHT; i++) {
+            mBackgrounds[i].setBounds(mBounds[i]);
+            layoutIcon(i);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void onDraw(Canvas canvas) {
+        for (int i = LEFT; i <= RIGHT; i++) {
+            // Skip the buttons outside of the area being redrawn
+            if (mVisibility[i] == VISIBLE && !canvas.quickReject(mBounds[i].left, mBounds[i].top,
+                                                                 mBounds[i].right, mBounds[i].bottom,
+                                                                 Canvas.EdgeType.BW)) {
+                mBackgrounds[i].draw(canvas);
+                if (mIcons[i] != null) {
+                    mIcons[i].draw(canvas);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes only the visible buttons from the transparent region: unlike
+     * the default implementation, the gap between them is left transparent.
+     *
+     * @param region The transparent region of the window.
+     *
+     * @return Returns true, as the bar itself is transparent.
+     */
+    @Override
+    public boolean gatherTransparentRegion(Region region) {
+        if (region == null) {
+            return true;
+        }
+
+        getLocationInWindow(mLocation);
+        for (int i = LEFT; i <= RIGHT; i++) {
+            if (mVisibility[i] == VISIBLE) {
+                final Rect bounds = mBounds[i];
+                region.op(mLocation[0] + bounds.left, mLocation[1] + bounds.top,
+                          mLocation[0] + bounds.right, mLocation[1] + bounds.bottom, Region.Op.DIFFERENCE);
+            }
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        final float x = event.getX(), y = event.getY();
+
+        switch (event.getAction()) {
+            case MotionEvent.ACTION_DOWN:
+                setPressedButton(getButtonAt(x, y));
+                // Let the touches in the gap between the buttons through
+                return mPressedButton != NONE;
+
+            case MotionEvent.ACTION_MOVE:
+                if (mPressedButton != NONE && !isWithinSlop(mBounds[mPressedButton], x, y)) {
+                    setPressedButton(NONE);
+                }
+                return true;
+
+            case MotionEvent.ACTION_UP:
+                final int clicked = mPressedButton;
+                setPressedButton(NONE);
+                if (clicked != NONE) {
+                    performButtonClick(clicked);
+                }
+                return true;
+
+            case MotionEvent.ACTION_CANCEL:
+                setPressedButton(NONE);
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Gives the focus to a button when the bar gets it: the right one when
+     * the focus comes from the right, the left one otherwise.
+     *
+     * @param gainFocus             True if the bar has gained the focus.
+     * @param direction             The direction the focus has moved in.
+     * @param previouslyFocusedRect The previously focused rectangle, or null.
+     */
+    @Override
+    protected void onFocusChanged(boolean gainFocus, int direction, Rect previouslyFocusedRect) {
+        super.onFocusChanged(gainFocus, direction, previouslyFocusedRect);
+
+        if (gainFocus) {
+            setFocusedButton(getNextVisibleButton(NONE, direction != FOCUS_LEFT));
+        }
+        else {
+            setPressedButton(NONE);
+            setFocusedButton(NONE);
+        }
+    }
+
+    /**
+     * Moves the focus between the buttons with the D-pad, and presses the
+     * focused button with the center key.
+     *
+     * @param keyCode The key code.
+     * @param event   The key event.
+     *
+     * @return Returns true if the event has been handled.
+     */
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        switch (keyCode) {
+            case KeyEvent.KEYCODE_DPAD_LEFT:
+            case KeyEvent.KEYCODE_DPAD_RIGHT:
+                final int next = getNextVisibleButton(mFocusedButton, keyCode == KeyEvent.KEYCODE_DPAD_RIGHT);
+                if (next == NONE) {
+                    // Let the focus leave the bar
+                    break;
+                }
+                setPressedButton(NONE);
+                setFocusedButton(next);
+                return true;
+
+            case KeyEvent.KEYCODE_DPAD_CENTER:
+            case KeyEvent.KEYCODE_ENTER:
+                if (mFocusedButton != NONE) {
+                    setPressedButton(mFocusedButton);
+                    return true;
+                }
+                break;
+        }
+
+        return super.onKeyDown(keyCode, event);
+    }
+
+    /**
+     * Clicks the focused button when the center key is released.
+     *
+     * @param keyCode The key code.
+     * @param event   The key event.
+     *
+     * @return Returns true if the event has been handled.
+     */
+    @Override
+    public boolean onKeyUp(int keyCode, KeyEvent event) {
+        if ((keyCode == KeyEvent.KEYCODE_DPAD_CENTER || keyCode == KeyEvent.KEYCODE_ENTER) &&
+            mPressedButton != NONE && mPressedButton == mFocusedButton) {
+            final int clicked = mPressedButton;
+            setPressedButton(NONE);
+            performButtonClick(clicked);
+            return true;
+        }
+
+        return super.onKeyUp(keyCode, event);
+    }
+
+    /**
+     * Exposes the buttons as virtual views to the accessibility services.
+     * Only called on Android 4.1+.
+     *
+     * @return Returns the virtual views provider.
+     */
+    @Override
+    public AccessibilityNodeProvider getAccessibilityNodeProvider() {
+        if (mNodeProvider == null) {
+            mNodeProvider = new VirtualButtonsProvider();
+        }
+        return mNodeProvider;
+    }
+
+    /**
+     * Reports the button under the pointer to the accessibility services
+     * while exploring by touch, on Android 4.1+.
+     *
+     * @param event The hover event.
+     *
+     * @return Returns true if the event has been handled.
+     */
+    @Override
+    public boolean dispatchHoverEvent(MotionEvent event) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN ||
+            !mAccessibilityManager.isEnabled() || !mAccessibilityManager.isTouchExplorationEnabled()) {
+            return super.dispatchHoverEvent(event);
+        }
+
+        switch (event.getAction()) {
+            case MotionEvent.ACTION_HOVER_ENTER:
+            case MotionEvent.ACTION_HOVER_MOVE:
+                setHoveredButton(getButtonAt(event.getX(), event.getY()));
+                if (mHoveredButton != NONE) {
+                    return true;
+                }
+                break;
+
+            case MotionEvent.ACTION_HOVER_EXIT:
+                setHoveredButton(NONE);
+                break;
+        }
+
+        return super.dispatchHoverEvent(event);
+    }
+
+    /**
+     * Adds the description of the button an event is about to the event,
+     * when the buttons aren't exposed as virtual views.
+     *
+     * @param event The event.
+     *
+     * @return Returns true if the event has been populated.
+     */
+    @Override
+    public boolean dispatchPopulateAccessibilityEvent(AccessibilityEvent event) {
+        final int button = mEventButton != NONE ? mEventButton : mFocusedButton;
+        if (button != NONE && mDescriptions[button] != null) {
+            event.getText().add(mDescriptions[button]);
+            return true;
+        }
+
+        return super.dispatchPopulateAccessibilityEvent(event);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected boolean verifyDrawable(Drawable who) {
+        return who == mIcons[LEFT] || who == mIcons[RIGHT] ||
+               who == mBackgrounds[LEFT] || who == mBackgrounds[RIGHT] ||
+               super.verifyDrawable(who);
+    }
+
+    /**
+     * Dispatches a click on a button to its listener.
+     *
+     * @param button The button, either {@link #LEFT} or {@link #RIGHT}.
+     *
+     * @return Returns true if the button has a listener.
+     */
+    private boolean performButtonClick(int button) {
+        sendButtonEvent(button, AccessibilityEvent.TYPE_VIEW_CLICKED);
+
+        final OnClickListener listener = mClickListeners[button];
+        if (listener != null) {
+            playSoundEffect(SoundEffectConstants.CLICK);
+            listener.onClick(this);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Changes the button that has the input focus, within the bar.
+     *
+     * @param button The newly focused button, or {@link #NONE}.
+     */
+    private void setFocusedButton(int button) {
+        if (button == mFocusedButton) {
+            return;
+        }
+
+        final int old = mFocusedButton;
+        mFocusedButton = button;
+
+        if (old != NONE) {
+            applyButtonState(old);
+        }
+        if (button != NONE) {
+            applyButtonState(button);
+            sendButtonEvent(button, AccessibilityEvent.TYPE_VIEW_FOCUSED);
+        }
+    }
+
+    /**
+     * Changes the button being explored by touch, and tells the accessibility
+     * services. Only called on Android 4.1+.
+     *
+     * @param button The newly hovered button, or {@link #NONE}.
+     */
+    private void setHoveredButton(int button) {
+        if (button == mHoveredButton) {
+            return;
+        }
+
+        final int old = mHoveredButton;
+        mHoveredButton = button;
+
+        if (button != NONE) {
+            sendButtonEvent(button, AccessibilityEvent.TYPE_VIEW_HOVER_ENTER);
+        }
+        if (old != NONE) {
+            sendButtonEvent(old, AccessibilityEvent.TYPE_VIEW_HOVER_EXIT);
+        }
+    }
+
+    /**
+     * Gets the next visible button in a direction.
+     *
+     * @param from    The button to start from, or {@link #NONE} to start
+     *                from the edge opposite to the direction.
+     * @param forward True to go right, false to go left.
+     *
+     * @return Returns {@link #LEFT}, {@link #RIGHT} or {@link #NONE}.
+     */
+    private int getNextVisibleButton(int from, boolean forward) {
+        final int step = forward ? 1 : -1;
+        for (int i = from != NONE ? from + step : (forward ? LEFT : RIGHT); i >= LEFT && i <= RIGHT; i += step) {
+            if (mVisibility[i] == VISIBLE) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Sends an accessibility event about a button: from its virtual view
+     * on Android 4.1+, from the bar otherwise.
+     *
+     * @param button The button, either {@link #LEFT} or {@link #RIGHT}.
+     * @param type   The event type.
+     */
+    private void sendButtonEvent(int button, int type) {
+        if (!mAccessibilityManager.isEnabled()) {
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // The description is added by dispatchPopulateAccessibilityEvent()
+            mEventButton = button;
+            sendAccessibilityEvent(type);
+            mEventButton = NONE;
+            return;
+        }
+
+        final ViewParent parent = getParent();
+        if (parent == null) {
+            return;
+        }
+
+        final AccessibilityEvent event = AccessibilityEvent.obtain(type);
+        event.setPackageName(getContext().getPackageName());
+        event.setClassName(Button.class.getName());
+        event.setEnabled(isEnabled());
+        event.setContentDescription(mDescriptions[button]);
+        event.setSource(this, button);
+        parent.requestSendAccessibilityEvent(this, event);
+    }
+
+    /**
+     * Changes the pressed button, updating the drawables states and
+     * invalidating only the affected buttons.
+     *
+     * @param button The newly pressed button, or {@link #NONE}.
+     */
+    private void setPressedButton(int button) {
+        if (button == mPressedButton) {
+            return;
+        }
+
+        final int old = mPressedButton;
+        mPressedButton = button;
+
+        if (old != NONE) {
+            applyButtonState(old);
+        }
+        if (button != NONE) {
+            applyButtonState(button);
+        }
+    }
+
+    /**
+     * Applies the current state of a button to its drawables.
+     *
+     * @param button The button, either {@link #LEFT} or {@link #RIGHT}.
+     */
+    private void applyButtonState(int button) {
+        final int[] state = getButtonState(button);
+        mBackgrounds[button].setState(state);
+        if (mIcons[button] != null) {
+            mIcons[button].setState(state);
+        }
+        invalidate(mBounds[button]);
+    }
+
+    /**
+     * Gets the drawable state of a button.
+     *
+     * @param button The button, either {@link #LEFT} or {@link #RIGHT}.
+     *
+     * @return Returns the drawable state set.
+     */
+    private int[] getButtonState(int button) {
+        if (button == mPressedButton) {
+            return button == mFocusedButton ? PRESSED_ENABLED_FOCUSED_STATE_SET : PRESSED_ENABLED_STATE_SET;
+        }
+        return button == mFocusedButton ? ENABLED_FOCUSED_STATE_SET : ENABLED_STATE_SET;
+    }
+
+    /**
+     * Sets the background of a button.
+     *
+     * @param button     The button, either {@link #LEFT} or {@link #RIGHT}.
+     * @param background The background.
+     */
+    private void setButtonBackground(int button, Drawable background) {
+        background.setCallback(this);
+        background.setState(getButtonState(button));
+        mBackgrounds[button] = background;
+    }
+
+    /**
+     * Centers the icon of a button inside its background padding, scaling
+     * it down if it doesn't fit.
+     *
+     * @param button The button, either {@link #LEFT} or {@link #RIGHT}.
+     */
+    private void layoutIcon(int button) {
+        final Drawable icon = mIcons[button];
+        if (icon == null) {
+            return;
+        }
+
+        final Rect bounds = mBounds[button];
+        mBackgrounds[button].getPadding(mPadding);
+        final int availableWidth = Math.max(0, bounds.width() - mPadding.left - mPadding.right);
+        final int availableHeight = Math.max(0, bounds.height() - mPadding.top - mPadding.bottom);
+
+        int width = Math.max(0, icon.getIntrinsicWidth());
+        int height = Math.max(0, icon.getIntrinsicHeight());
+        if (width > availableWidth || height > availableHeight || width == 0 || height == 0) {
+            final float scale = (width == 0 || height == 0) ? 1f :
+                                Math.min((float) availableWidth / width, (float) availableHeight / height);
+            width = width == 0 ? availableWidth : (int) (width * scale);
+            height = height == 0 ? availableHeight : (int) (height * scale);
+        }
+
+        final int left = bounds.left + mPadding.left + (availableWidth - width) / 2;
+        final int top = bounds.top + mPadding.top + (availableHeight - height) / 2;
+        icon.setBounds(left, top, left + width, top + height);
+    }
+
+    /**
+     * Gets the width a button needs.
+     *
+     * @param button The button, either {@link #LEFT} or {@link #RIGHT}.
+     *
+     * @return Returns the button width, in pixels.
+     */
+    private int getButtonWidth(int button) {
+        final Drawable background = mBackgrounds[button];
+        final Drawable icon = mIcons[button];
+
+        background.getPadding(mPadding);
+        final int iconWidth = icon != null ? Math.max(0, icon.getIntrinsicWidth()) : 0;
+        return Math.max(background.getIntrinsicWidth(), iconWidth + mPadding.left + mPadding.right);
+    }
+
+    /**
+     * Gets the height a button needs.
+     *
+     * @param button The button, either {@link #LEFT} or {@link #RIGHT}.
+     *
+     * @return Returns the button height, in pixels.
+     */
+    private int getButtonHeight(int button) {
+        final Drawable background = mBackgrounds[button];
+        final Drawable icon = mIcons[button];
+
+        background.getPadding(mPadding);
+        final int iconHeight = icon != null ? Math.max(0, icon.getIntrinsicHeight()) : 0;
+        return Math.max(background.getIntrinsicHeight(), iconHeight + mPadding.top + mPadding.bottom);
+    }
+
+    /**
+     * Checks if a point is inside a rectangle, expanded by the touch slop.
+     *
+     * @param bounds The rectangle.
+     * @param x      The point X coordinate.
+     * @param y      The point Y coordinate.
+     *
+     * @return Returns true if the point is within the slop of the rectangle.
+     */
+    private boolean isWithinSlop(Rect bounds, float x, float y) {
+        return x >= bounds.left - mTouchSlop && x < bounds.right + mTouchSlop &&
+               y >= bounds.top - mTouchSlop && y < bounds.bottom + mTouchSlop;
+    }
+
+    /**
+     * Exposes the visible buttons as the virtual children of the bar, with
+     * the button IDs as their virtual view IDs. Only used on Android 4.1+.
+     */
+    private final class VirtualButtonsProvider extends AccessibilityNodeProvider {
+
+        @Override
+        public AccessibilityNodeInfo createAccessibilityNodeInfo(int virtualViewId) {
+            if (virtualViewId == View.NO_ID) {
+                final AccessibilityNodeInfo info = AccessibilityNodeInfo.obtain(CompactMenuBar.this);
+                onInitializeAccessibilityNodeInfo(info);
+                for (int i = LEFT; i <= RIGHT; i++) {
+                    if (mVisibility[i] == VISIBLE) {
+                        info.addChild(CompactMenuBar.this, i);
+                    }
+                }
+                return info;
+            }
+
+            if (virtualViewId != LEFT && virtualViewId != RIGHT) {
+                return null;
+            }
+
+            final AccessibilityNodeInfo info = AccessibilityNodeInfo.obtain(CompactMenuBar.this, virtualViewId);
+            info.setPackageName(getContext().getPackageName());
+            info.setClassName(Button.class.getName());
+            info.setParent(CompactMenuBar.this);
+            info.setContentDescription(mDescriptions[virtualViewId]);
+            info.setEnabled(isEnabled());
+            info.setVisibleToUser(mVisibility[virtualViewId] == VISIBLE && isShown());
+            info.setClickable(true);
+            info.setFocusable(true);
+            info.setFocused(isFocused() && mFocusedButton == virtualViewId);
+
+            final Rect bounds = mBounds[virtualViewId];
+            info.setBoundsInParent(bounds);
+            getLocationOnScreen(mLocation);
+            mScreenBounds.set(bounds);
+            mScreenBounds.offset(mLocation[0], mLocation[1]);
+            info.setBoundsInScreen(mScreenBounds);
+
+            final boolean accessibilityFocused = mAccessibilityFocusedButton == virtualViewId;
+            info.setAccessibilityFocused(accessibilityFocused);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                info.addAction(AccessibilityNodeInfo.AccessibilityAction.ACTION_CLICK);
+                info.addAction(accessibilityFocused ?
+                               AccessibilityNodeInfo.AccessibilityAction.ACTION_CLEAR_ACCESSIBILITY_FOCUS :
+                               AccessibilityNodeInfo.AccessibilityAction.ACTION_ACCESSIBILITY_FOCUS);
+            }
+            else {
+                addLegacyActions(info, accessibilityFocused);
+            }
+            return info;
+        }
+
+        /**
+         * Adds the actions of a button node, before Android 5.0.
+         *
+         * @param info                 The button node.
+         * @param accessibilityFocused True if the button has the accessibility focus.
+         */
+        @SuppressWarnings("deprecation")
+        private void addLegacyActions(AccessibilityNodeInfo info, boolean accessibilityFocused) {
+            info.addAction(AccessibilityNodeInfo.ACTION_CLICK);
+            info.addAction(accessibilityFocused ? AccessibilityNodeInfo.ACTION_CLEAR_ACCESSIBILITY_FOCUS :
+                           AccessibilityNodeInfo.ACTION_ACCESSIBILITY_FOCUS);
+        }
+
+        @Override
+        public boolean performAction(int virtualViewId, int action, Bundle arguments) {
+            if (virtualViewId == View.NO_ID) {
+                return performAccessibilityAction(action, arguments);
+            }
+            if ((virtualViewId != LEFT && virtualViewId != RIGHT) || mVisibility[virtualViewId] != VISIBLE) {
+                return false;
+            }
+
+            switch (action) {
+                case AccessibilityNodeInfo.ACTION_CLICK:
+                    return performButtonClick(virtualViewId);
+
+                case AccessibilityNodeInfo.ACTION_ACCESSIBILITY_FOCUS:
+                    if (mAccessibilityFocusedButton == virtualViewId) {
+                        return false;
+                    }
+                    mAccessibilityFocusedButton = virtualViewId;
+                    // The system draws the focus indicator from the node bounds
+                    invalidate();
+                    sendButtonEvent(virtualViewId, AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUSED);
+                    return true;
+
+                case AccessibilityNodeInfo.ACTION_CLEAR_ACCESSIBILITY_FOCUS:
+                    if (mAccessibilityFocusedButton != virtualViewId) {
+                        return false;
+                    }
+                    mAccessibilityFocusedButton = NONE;
+                    invalidate();
+                    sendButtonEvent(virtualViewId, AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUS_CLEARED);
+                    return true;
+            }
+
+            return false;
+        }
+    }
+}
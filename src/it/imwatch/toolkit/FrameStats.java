@@ -0,0 +1,145 @@
+package it.imwatch.toolkit;
+
+import android.content.Context;
+import android.view.Display;
+import android.view.WindowManager;
+
+/**
+ * Collects the frame timings of an overlay menu transition: number of
+ * frames, total duration, and the frames that have been dropped because
+ * they came later than the display refresh interval allows.
+ * <p/>
+ * The instances are reused across transitions, and never allocate. Creating
+ * one costs nothing either: the display refresh interval is only queried
+ * when the first transition of the process is measured, and then cached.
+ * This class must only be used from the main thread.
+ */
+final class FrameStats {
+
+    /** A frame is late if it takes longer than this many refresh intervals. */
+    private static final float LATE_FRAME_FACTOR = 1.5f;
+
+    /** The default display refresh interval, in nanoseconds, or 0 until queried. */
+    private static long sFrameIntervalNanos;
+
+    private final Context mContext;
+    private long mFrameIntervalNanos;
+
+    private long mStartNanos;
+    private long mLastFrameNanos;
+    private int mFrames;
+    private int mDroppedFrames;
+
+    /**
+     * Initializes the frame stats for the default display.
+     *
+     * @param context The context to get the display from.
+     */
+    FrameStats(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Gets the default display refresh interval, querying the display the
+     * first time only.
+     *
+     * @param context The context to get the display from.
+     *
+     * @return Returns the refresh interval, in nanoseconds.
+     */
+    private static long getDisplayFrameIntervalNanos(Context context) {
+        if (sFrameIntervalNanos == 0L) {
+            final Display display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE))
+                    .getDefaultDisplay();
+            float refreshRate = display.getRefreshRate();
+            if (refreshRate < 10f) {
+                // Some devices report bogus values
+                refreshRate = 60f;
+            }
+            sFrameIntervalNanos = (long) (1000000000L / refreshRate);
+        }
+        return sFrameIntervalNanos;
+    }
+
+    /**
+     * Starts collecting the timings of a new transition.
+     *
+     * @param nowNanos The current time, in nanoseconds.
+     */
+    void start(long nowNanos) {
+        if (mFrameIntervalNanos == 0L) {
+            mFrameIntervalNanos = getDisplayFrameIntervalNanos(mContext);
+        }
+        mStartNanos = mLastFrameNanos = nowNanos;
+        mFrames = 0;
+        mDroppedFrames = 0;
+    }
+
+    /**
+     * Records a frame.
+     *
+     * @param nowNanos The current time, in nanoseconds.
+     *
+     * @return Returns the frame duration, in nanoseconds.
+     */
+    long onFrame(long nowNanos) {
+        final long duration = nowNanos - mLastFrameNanos;
+        mLastFrameNanos = nowNanos;
+        mFrames++;
+
+        if (duration > mFrameIntervalNanos * LATE_FRAME_FACTOR) {
+            mDroppedFrames += (int) ((duration + mFrameIntervalNanos / 2) / mFrameIntervalNanos) - 1;
+        }
+
+        return duration;
+    }
+
+    /**
+     * Skips a gap in the frames that isn't due to them being late, e.g.
+     * while the transition has been paused.
+     *
+     * @param nowNanos The current time, in nanoseconds.
+     */
+    void skipGap(long nowNanos) {
+        mLastFrameNanos = nowNanos;
+    }
+
+    /**
+     * Gets the display refresh interval.
+     *
+     * @return Returns the refresh interval, in nanoseconds, or 0 until the
+     *         first transition has been started.
+     */
+    long getFrameIntervalNanos() {
+        return mFrameIntervalNanos;
+    }
+
+    /**
+     * Gets the time elapsed since the transition started.
+     *
+     * @param nowNanos The current time, in nanoseconds.
+     *
+     * @return Returns the elapsed time, in nanoseconds.
+     */
+    long getElapsedNanos(long nowNanos) {
+        return nowNanos - mStartNanos;
+    }
+
+    /**
+     * Gets the number of frames recorded in the current transition.
+     *
+     * @return Returns the number of frames.
+     */
+    int getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * Gets the number of frames dropped in the current transition.
+     *
+     * @return Returns the number of dropped frames.
+     */
+    int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+}
@@ -0,0 +1,244 @@
+package it.imwatch.toolkit;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+
+/**
+ * Holds the icon of an overlay menu button, so that it can be swapped
+ * without changing the button size, and optionally cross-faded.
+ * <p/>
+ * The intrinsic size is set when the drawable is built, and never changes: a
+ * swap only invalidates the button, and never triggers a layout pass. The
+ * icons are drawn centered, and scaled down to fit if they're larger. Each
+ * button reuses a single instance for all its swaps, instead of allocating
+ * a new TransitionDrawable every time.
+ * <p/>
+ * The icons are mutated, as their alpha changes while they're cross-faded.
+ */
+final class IconSwapDrawable extends Drawable implements Drawable.Callback {
+
+    private final int mWidth, mHeight;
+    private Drawable mCurrent, mPrevious;
+    private int mAlpha = 255;
+    private ColorFilter mColorFilter;
+    private long mFadeStartMillis;
+    private int mFadeDuration;
+
+    /**
+     * Initializes the drawable, without an icon.
+     *
+     * @param width  The intrinsic width, or -1.
+     * @param height The intrinsic height, or -1.
+     */
+    IconSwapDrawable(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Sets the icon, cross-fading it with the current one if a duration is given.
+     *
+     * @param icon         The new icon, or null.
+     * @param fadeDuration The cross-fade duration, in milliseconds, or 0 to swap immediately.
+     */
+    void setIcon(Drawable icon, int fadeDuration) {
+        if (icon == mCurrent) {
+            return;
+        }
+
+        // Only one cross-fade at a time: a running one is cut short
+        dropIcon(mPrevious);
+        mPrevious = null;
+
+        if (fadeDuration > 0 && mCurrent != null) {
+            mPrevious = mCurrent;
+            mFadeStartMillis = SystemClock.uptimeMillis();
+            mFadeDuration = fadeDuration;
+        }
+        else {
+            dropIcon(mCurrent);
+            mFadeDuration = 0;
+        }
+
+        mCurrent = icon;
+        if (icon != null) {
+            icon.mutate();
+            icon.setCallback(this);
+            icon.setState(getState());
+            icon.setAlpha(mAlpha);
+            icon.setColorFilter(mColorFilter);
+            layoutIcon(icon, getBounds());
+        }
+        invalidateSelf();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void draw(Canvas canvas) {
+        if (mPrevious == null) {
+            if (mCurrent != null) {
+                mCurrent.draw(canvas);
+            }
+            return;
+        }
+
+        final float fraction = Math.min(1f, (float) (SystemClock.uptimeMillis() - mFadeStartMillis) / mFadeDuration);
+        if (fraction >= 1f) {
+            dropIcon(mPrevious);
+            mPrevious = null;
+            if (mCurrent != null) {
+                mCurrent.setAlpha(mAlpha);
+                mCurrent.draw(canvas);
+            }
+            return;
+        }
+
+        mPrevious.setAlpha((int) (mAlpha * (1f - fraction)));
+        mPrevious.draw(canvas);
+        if (mCurrent != null) {
+            mCurrent.setAlpha((int) (mAlpha * fraction));
+            mCurrent.draw(canvas);
+        }
+        invalidateSelf();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getIntrinsicWidth() {
+        return mWidth;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getIntrinsicHeight() {
+        return mHeight;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setAlpha(int alpha) {
+        if (alpha == mAlpha) {
+            return;
+        }
+
+        mAlpha = alpha;
+        if (mCurrent != null && mPrevious == null) {
+            mCurrent.setAlpha(alpha);
+        }
+        invalidateSelf();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setColorFilter(ColorFilter cf) {
+        mColorFilter = cf;
+        if (mCurrent != null) {
+            mCurrent.setColorFilter(cf);
+        }
+        if (mPrevious != null) {
+            mPrevious.setColorFilter(cf);
+        }
+        invalidateSelf();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isStateful() {
+        return mCurrent != null && mCurrent.isStateful();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected boolean onStateChange(int[] state) {
+        boolean changed = false;
+        if (mCurrent != null) {
+            changed = mCurrent.setState(state);
+        }
+        if (mPrevious != null) {
+            changed |= mPrevious.setState(state);
+        }
+        return changed;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        if (mCurrent != null) {
+            layoutIcon(mCurrent, bounds);
+        }
+        if (mPrevious != null) {
+            layoutIcon(mPrevious, bounds);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void invalidateDrawable(Drawable who) {
+        if (who == mCurrent || who == mPrevious) {
+            invalidateSelf();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void scheduleDrawable(Drawable who, Runnable what, long when) {
+        if (who == mCurrent || who == mPrevious) {
+            scheduleSelf(what, when);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void unscheduleDrawable(Drawable who, Runnable what) {
+        if (who == mCurrent || who == mPrevious) {
+            unscheduleSelf(what);
+        }
+    }
+
+    /**
+     * Detaches an icon that's no longer drawn, restoring its alpha.
+     *
+     * @param icon The icon, or null.
+     */
+    private static void dropIcon(Drawable icon) {
+        if (icon != null) {
+            icon.setCallback(null);
+            icon.setAlpha(255);
+        }
+    }
+
+    /**
+     * Centers an icon in the given bounds, at its intrinsic size, scaled
+     * down to fit if it's larger.
+     *
+     * @param icon   The icon.
+     * @param bounds The bounds to fit the icon into.
+     */
+    private static void layoutIcon(Drawable icon, Rect bounds) {
+        int width = icon.getIntrinsicWidth();
+        int height = icon.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            // No intrinsic size, fill the bounds
+            icon.setBounds(bounds);
+            return;
+        }
+
+        final float scale = Math.min(1f, Math.min((float) bounds.width() / width, (float) bounds.height() / height));
+        width = (int) (width * scale + 0.5f);
+        height = (int) (height * scale + 0.5f);
+
+        final int left = bounds.left + (bounds.width() - width) / 2;
+        final int top = bounds.top + (bounds.height() - height) / 2;
+        icon.setBounds(left, top, left + width, top + height);
+    }
+}
@@ -0,0 +1,158 @@
+package it.imwatch.toolkit;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.SparseArray;
+import android.view.animation.Animation;
+import android.view.animation.AnimationUtils;
+
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
+/**
+ * Process-wide cache of the parsed overlay menu animations.
+ * <p/>
+ * Loading an animation resource means parsing its XML and allocating the
+ * whole animation tree, which adds up quickly when many menus are built,
+ * e.g. in list rows or pager pages. The menus obtain their appearing and
+ * hiding animations from this cache when a transition starts, and give them
+ * back as soon as it ends, so that the other menus, even the ones on screen
+ * at the same time, can reuse them as they are instead of parsing the
+ * resource again. Only the menus that are animating at the same time need
+ * an instance each.
+ * <p/>
+ * The cached animations are keyed by their resource ID, and are dropped
+ * whenever the resources configuration changes. Each instance records the
+ * configuration it was loaded with, so that the instances handed out before
+ * a change are dropped when they're given back, instead of being pooled
+ * with the new ones. Apps can register their
+ * own animations through {@link #preload(Context, int, int)}, and use them
+ * with {@link OverlayMenu#setMenuAnimations(int, int)} or the
+ * {@code menuInAnimation} and {@code menuOutAnimation} attributes.
+ */
+public final class MenuAnimationCache {
+
+    /** The maximum number of idle animations kept for each resource. */
+    private static final int MAX_POOL_SIZE = 4;
+
+    private static final SparseArray<ArrayList<Animation>> sPool = new SparseArray<ArrayList<Animation>>();
+    private static final WeakHashMap<Animation, Configuration> sLoadedWith = new WeakHashMap<Animation, Configuration>();
+    private static Configuration sConfiguration;
+
+    private MenuAnimationCache() {
+        // Not instantiable
+    }
+
+    /**
+     * Loads an animation resource in the cache ahead of time, so that the
+     * menus using it don't have to parse it. Can be called from any thread.
+     *
+     * @param context    The context to load the animation with.
+     * @param animResId  The animation resource ID.
+     * @param count      The number of instances to keep ready.
+     */
+    public static synchronized void preload(Context context, int animResId, int count) {
+        checkConfiguration(context);
+
+        final ArrayList<Animation> pool = getPool(animResId);
+        final int target = Math.min(count, MAX_POOL_SIZE);
+        while (pool.size() < target) {
+            pool.add(load(context, animResId));
+        }
+    }
+
+    /** Drops all the cached animations. */
+    public static synchronized void clear() {
+        sPool.clear();
+    }
+
+    /**
+     * Gets an instance of an animation, reusing an idle one if possible.
+     *
+     * @param context   The context to load the animation with.
+     * @param animResId The animation resource ID.
+     *
+     * @return Returns an animation instance, owned by the caller until it is recycled.
+     */
+    static synchronized Animation obtain(Context context, int animResId) {
+        checkConfiguration(context);
+
+        final ArrayList<Animation> pool = sPool.get(animResId);
+        if (pool != null && !pool.isEmpty()) {
+            return pool.remove(pool.size() - 1);
+        }
+
+        return load(context, animResId);
+    }
+
+    /**
+     * Gives an animation instance back to the cache. The animation must not
+     * be running, and must not be used by the caller anymore. It's dropped if
+     * it was loaded before the last configuration change.
+     *
+     * @param animResId The resource ID the animation was obtained with.
+     * @param animation The animation instance.
+     */
+    static synchronized void recycle(int animResId, Animation animation) {
+        animation.setAnimationListener(null);
+        animation.reset();
+
+        if (sLoadedWith.get(animation) != sConfiguration) {
+            // Loaded with a stale configuration
+            sLoadedWith.remove(animation);
+            return;
+        }
+
+        final ArrayList<Animation> pool = getPool(animResId);
+        if (pool.size() < MAX_POOL_SIZE) {
+            pool.add(animation);
+        }
+    }
+
+    /**
+     * Loads a new instance of an animation, recording the configuration it's
+     * loaded with.
+     *
+     * @param context   The context to load the animation with.
+     * @param animResId The animation resource ID.
+     *
+     * @return Returns the animation instance.
+     */
+    private static Animation load(Context context, int animResId) {
+        final Animation animation = AnimationUtils.loadAnimation(context, animResId);
+        sLoadedWith.put(animation, sConfiguration);
+        return animation;
+    }
+
+    /**
+     * Gets the pool of idle instances of an animation, creating it if needed.
+     *
+     * @param animResId The animation resource ID.
+     *
+     * @return Returns the pool.
+     */
+    private static ArrayList<Animation> getPool(int animResId) {
+        ArrayList<Animation> pool = sPool.get(animResId);
+        if (pool == null) {
+            pool = new ArrayList<Animation>(MAX_POOL_SIZE);
+            sPool.put(animResId, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Drops the cached animations if the resources configuration has changed
+     * since they were loaded.
+     *
+     * @param context The context whose configuration is being used.
+     */
+    private static void checkConfiguration(Context context) {
+        final Configuration current = context.getResources().getConfiguration();
+
+        if (sConfiguration == null || sConfiguration.diff(current) != 0) {
+            sPool.clear();
+            sLoadedWith.clear();
+            sConfiguration = new Configuration(current);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package it.imwatch.toolkit;
+
+import android.view.Choreographer;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.animation.Interpolator;
+
+/**
+ * Drives the overlay menu transitions on Android 4.1+, animating the actual
+ * alpha and translationY properties of the menu buttons from the display
+ * frame callbacks.
+ * <p/>
+ * The buttons are animated rather than the menu itself, so that each frame
+ * only damages the buttons, and not the gap between them.
+ * <p/>
+ * Unlike the legacy view animations, the menu is really where it's drawn
+ * at every frame, and nothing is allocated per frame. The translation is
+ * tracked as a fraction of the menu height, so that a transition can start
+ * before the menu has been laid out: the menu reports its height with
+ * {@link #setTargetHeight(int)} when it's known, and the current translation
+ * is applied again. A new transition always starts from
+ * the current values, so interrupting a transition with the opposite one
+ * just reverses it, with the duration scaled to the distance left.
+ * <p/>
+ * This class must only be used from the main thread, and only be loaded
+ * on devices that have the {@link Choreographer}.
+ */
+final class MenuAnimator implements Choreographer.FrameCallback {
+
+    private final ViewGroup mTarget;
+    private final Listener mListener;
+    private final Choreographer mChoreographer;
+
+    private int mHeight;
+    private float mAlpha = 1f, mOffset;
+    private float mFromAlpha, mToAlpha, mFromOffset, mToOffset;
+    private Interpolator mInterpolator;
+    private long mDurationNanos;
+    private long mStartNanos;
+    private long mLastFrameNanos;
+    private long mResumeOffsetNanos;
+    private boolean mRunning;
+    private boolean mPaused;
+
+    /**
+     * Initializes the animator.
+     *
+     * @param target   The menu, whose children are animated.
+     * @param listener The listener to notify of the frames and the end of the transitions.
+     */
+    MenuAnimator(ViewGroup target, Listener listener) {
+        mTarget = target;
+        mListener = listener;
+        mChoreographer = Choreographer.getInstance();
+        mHeight = target.getHeight();
+    }
+
+    /**
+     * Sets the menu height the translation is relative to, and applies the
+     * current translation again if it has changed. Called when the menu is
+     * laid out, and before a swipe that starts from a menu never laid out.
+     *
+     * @param height The menu height, in pixels.
+     */
+    void setTargetHeight(int height) {
+        if (height == mHeight) {
+            return;
+        }
+        mHeight = height;
+        apply(mAlpha, mOffset);
+    }
+
+    /**
+     * Stops any running transition and applies the given values right away.
+     *
+     * @param alpha  The alpha.
+     * @param offset The translation, as a fraction of the menu height.
+     */
+    void jumpTo(float alpha, float offset) {
+        cancel();
+        apply(alpha, offset);
+    }
+
+    /**
+     * Starts a transition from the current values, replacing the running
+     * one if any. The listener is not notified of the replaced one end.
+     *
+     * @param alpha        The target alpha.
+     * @param offset       The target translation, as a fraction of the menu height.
+     * @param duration     The duration of a whole transition, in milliseconds.
+     * @param interpolator The interpolator, or null for a linear one.
+     */
+    void animateTo(float alpha, float offset, long duration, Interpolator interpolator) {
+        mFromAlpha = mAlpha;
+        mFromOffset = mOffset;
+        mToAlpha = alpha;
+        mToOffset = offset;
+        mInterpolator = interpolator;
+
+        // A whole transition covers a distance of 1 in both properties
+        final float distance = Math.min(1f, Math.max(Math.abs(alpha - mAlpha), Math.abs(offset - mOffset)));
+        mDurationNanos = (long) (duration * distance) * 1000000L;
+        mStartNanos = -1L;
+        mResumeOffsetNanos = 0L;
+
+        if (!mRunning) {
+            mRunning = true;
+            if (!mPaused) {
+                mChoreographer.postFrameCallback(this);
+            }
+        }
+    }
+
+    /**
+     * Pauses the animator, e.g. while the view is not on screen. The running
+     * transition, if any, stops receiving frames, and transitions started
+     * while paused wait for {@link #resume()}.
+     */
+    void pause() {
+        if (mPaused) {
+            return;
+        }
+        mPaused = true;
+
+        if (mRunning) {
+            mChoreographer.removeFrameCallback(this);
+            mResumeOffsetNanos = mStartNanos < 0L ? mResumeOffsetNanos : mLastFrameNanos - mStartNanos;
+            mStartNanos = -1L;
+        }
+    }
+
+    /** Resumes the animator, continuing the running transition where it was paused. */
+    void resume() {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+
+        if (mRunning) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /** Stops the running transition, if any, leaving the values as they are. */
+    void cancel() {
+        if (mRunning) {
+            mChoreographer.removeFrameCallback(this);
+            mRunning = false;
+        }
+        mResumeOffsetNanos = 0L;
+    }
+
+    /**
+     * Gets a value indicating whether a transition is running.
+     *
+     * @return Returns true if a transition is running.
+     */
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mStartNanos < 0L) {
+            // First frame, or first one after a pause
+            mStartNanos = frameTimeNanos - mResumeOffsetNanos;
+            mResumeOffsetNanos = 0L;
+        }
+        mLastFrameNanos = frameTimeNanos;
+
+        final float fraction = mDurationNanos <= 0L ? 1f :
+                               Math.min(1f, (float) (frameTimeNanos - mStartNanos) / mDurationNanos);
+        final float value = mInterpolator != null ? mInterpolator.getInterpolation(fraction) : fraction;
+        apply(mFromAlpha + (mToAlpha - mFromAlpha) * value, mFromOffset + (mToOffset - mFromOffset) * value);
+
+        if (fraction < 1f) {
+            mChoreographer.postFrameCallback(this);
+            mListener.onAnimatorFrame(fraction);
+        }
+        else {
+            mRunning = false;
+            mListener.onAnimatorFrame(1f);
+            mListener.onAnimatorEnd();
+        }
+    }
+
+    /**
+     * Applies the current values to a child added to the menu.
+     *
+     * @param child The new child.
+     */
+    void applyTo(View child) {
+        child.setAlpha(mAlpha);
+        child.setTranslationY(mOffset * mHeight);
+    }
+
+    /**
+     * Applies the values to the menu children.
+     *
+     * @param alpha  The alpha.
+     * @param offset The translation, as a fraction of the menu height.
+     */
+    private void apply(float alpha, float offset) {
+        mAlpha = alpha;
+        mOffset = offset;
+
+        final float translation = offset * mHeight;
+        for (int i = 0, count = mTarget.getChildCount(); i < count; i++) {
+            final View child = mTarget.getChildAt(i);
+            child.setAlpha(alpha);
+            child.setTranslationY(translation);
+        }
+    }
+
+    /** Listener for the animator transitions. */
+    interface Listener {
+
+        /**
+         * Called after each frame of a transition has been applied.
+         *
+         * @param progress The fraction of the transition duration elapsed, from 0 to 1.
+         */
+        void onAnimatorFrame(float progress);
+
+        /** Called when a transition ends. */
+        void onAnimatorEnd();
+    }
+}
@@ -0,0 +1,285 @@
+package it.imwatch.toolkit;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.DisplayMetrics;
+import android.util.TypedValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Process-wide cache of the drawables used by the overlay menus: button
+ * backgrounds and icons.
+ * <p/>
+ * The cache keeps the drawables {@link Drawable.ConstantState}, which hold
+ * the decoded bitmaps, and hands out new drawables built from them. All the
+ * menus showing the same resource thus share a single bitmap, and obtaining
+ * a drawable that is already cached doesn't decode anything, even when no
+ * menu uses it anymore and the framework has let go of its own copy.
+ * <p/>
+ * Plain bitmap resources, such as app icons, are decoded by the cache for
+ * the display density. The ones coming from a denser bucket than the display
+ * are subsampled while they're decoded, so the full size bitmap is never
+ * allocated, and only the remaining fraction is scaled. Nine-patches and XML
+ * drawables, such as the toolkit selectors, are loaded by the framework,
+ * which scales their bitmaps for the display density without subsampling,
+ * as that would break the nine-patch chunks.
+ * <p/>
+ * The least recently used drawables are dropped when the estimated size of
+ * the cached bitmaps exceeds the budget set with {@link #setMaxSize(int)}.
+ * The whole cache is dropped whenever the resources configuration changes.
+ */
+public final class MenuDrawableCache {
+
+    /** The default budget, in bytes. */
+    private static final int DEFAULT_MAX_SIZE = 512 * 1024;
+
+    private static final LinkedHashMap<Integer, Entry> sEntries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+    private static Configuration sConfiguration;
+    private static int sMaxSize = DEFAULT_MAX_SIZE;
+    private static int sSize;
+
+    private MenuDrawableCache() {
+        // Not instantiable
+    }
+
+    /**
+     * Gets the budget of the cache.
+     *
+     * @return Returns the budget, in bytes.
+     */
+    public static synchronized int getMaxSize() {
+        return sMaxSize;
+    }
+
+    /**
+     * Sets the budget of the cache, dropping the least recently used
+     * drawables if the cache is over it.
+     *
+     * @param maxSize The budget, in bytes. Must be zero or greater.
+     */
+    public static synchronized void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("The cache size must be zero or a positive value.");
+        }
+
+        sMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Gets the estimated size of the cached bitmaps.
+     *
+     * @return Returns the size, in bytes.
+     */
+    public static synchronized int getSize() {
+        return sSize;
+    }
+
+    /** Drops all the cached drawables. */
+    public static synchronized void clear() {
+        sEntries.clear();
+        sSize = 0;
+    }
+
+    /**
+     * Loads a drawable resource in the cache ahead of time, so that the
+     * menus using it don't have to decode it. Can be called from any thread.
+     *
+     * @param context       The context to load the drawable with.
+     * @param drawableResId The drawable resource ID.
+     */
+    public static void preload(Context context, int drawableResId) {
+        obtain(context, drawableResId);
+    }
+
+    /**
+     * Gets a new drawable for a resource, sharing its bitmaps with all the
+     * other drawables obtained for the same resource.
+     *
+     * @param context       The context to load the drawable with.
+     * @param drawableResId The drawable resource ID.
+     *
+     * @return Returns a drawable instance, owned by the caller.
+     */
+    static synchronized Drawable obtain(Context context, int drawableResId) {
+        checkConfiguration(context);
+
+        final Resources resources = context.getResources();
+        final Entry entry = sEntries.get(drawableResId);
+        if (entry != null) {
+            return entry.mState.newDrawable(resources);
+        }
+
+        final Drawable drawable = load(resources, drawableResId);
+        final Drawable.ConstantState state = drawable.getConstantState();
+        if (state == null) {
+            // Can't be shared
+            return drawable;
+        }
+
+        final int size = estimateSize(drawable);
+        if (size <= sMaxSize) {
+            sEntries.put(drawableResId, new Entry(state, size));
+            sSize += size;
+            trimToSize(sMaxSize);
+        }
+        return drawable;
+    }
+
+    /**
+     * Loads a drawable resource, decoding plain bitmaps for the display density.
+     *
+     * @param resources     The resources to load the drawable from.
+     * @param drawableResId The drawable resource ID.
+     *
+     * @return Returns the drawable.
+     */
+    private static Drawable load(Resources resources, int drawableResId) {
+        final TypedValue value = new TypedValue();
+        resources.getValue(drawableResId, value, true);
+
+        final String file = value.string != null ? value.string.toString() : "";
+        if (!file.endsWith(".9.png") && (file.endsWith(".png") || file.endsWith(".jpg") || file.endsWith(".webp"))) {
+            final Bitmap bitmap = decodeBitmap(resources, drawableResId, value);
+            if (bitmap != null) {
+                return new BitmapDrawable(resources, bitmap);
+            }
+        }
+
+        return resources.getDrawable(drawableResId);
+    }
+
+    /**
+     * Decodes a bitmap resource for the display density, subsampling it by
+     * the largest power of two that doesn't go below the display density.
+     *
+     * @param resources     The resources to decode the bitmap from.
+     * @param drawableResId The bitmap resource ID.
+     * @param value         The resource value, filled in with its density.
+     *
+     * @return Returns the bitmap, or null if it can't be decoded.
+     */
+    private static Bitmap decodeBitmap(Resources resources, int drawableResId, TypedValue value) {
+        final int targetDensity = resources.getDisplayMetrics().densityDpi;
+        int density = value.density;
+        if (density == TypedValue.DENSITY_NONE) {
+            // Not meant to be scaled
+            density = targetDensity;
+        }
+        else if (density == TypedValue.DENSITY_DEFAULT) {
+            density = DisplayMetrics.DENSITY_DEFAULT;
+        }
+
+        final int sampleSize = getSampleSize(density, targetDensity);
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inDensity = density / sampleSize;
+        options.inTargetDensity = targetDensity;
+
+        InputStream stream = null;
+        try {
+            stream = resources.openRawResource(drawableResId, value);
+            return BitmapFactory.decodeResourceStream(resources, value, stream, null, options);
+        }
+        catch (Resources.NotFoundException e) {
+            return null;
+        }
+        finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                }
+                catch (IOException ignored) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the largest power of two a bitmap can be subsampled by without
+     * going below the display density.
+     *
+     * @param density       The bitmap density.
+     * @param targetDensity The display density.
+     *
+     * @return Returns the sample size, 1 if the bitmap can't be subsampled.
+     */
+    static int getSampleSize(int density, int targetDensity) {
+        int sampleSize = 1;
+        while (density / (sampleSize * 2) >= targetDensity) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Drops the least recently used drawables until the cache fits a size.
+     *
+     * @param maxSize The size to fit, in bytes.
+     */
+    private static void trimToSize(int maxSize) {
+        final Iterator<Entry> iterator = sEntries.values().iterator();
+        while (sSize > maxSize && iterator.hasNext()) {
+            sSize -= iterator.next().mSize;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Estimates the memory held by a drawable bitmaps.
+     *
+     * @param drawable The drawable.
+     *
+     * @return Returns the estimated size, in bytes.
+     */
+    private static int estimateSize(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        }
+
+        // Assume a single ARGB_8888 bitmap, as big as the drawable
+        final int width = Math.max(0, drawable.getIntrinsicWidth());
+        final int height = Math.max(0, drawable.getIntrinsicHeight());
+        return width * height * 4;
+    }
+
+    /**
+     * Drops the cached drawables if the resources configuration has changed
+     * since they were loaded.
+     *
+     * @param context The context whose configuration is being used.
+     */
+    private static void checkConfiguration(Context context) {
+        final Configuration current = context.getResources().getConfiguration();
+
+        if (sConfiguration == null || sConfiguration.diff(current) != 0) {
+            clear();
+            sConfiguration = new Configuration(current);
+        }
+    }
+
+    /** A cached drawable state, with its estimated size. */
+    private static final class Entry {
+
+        final Drawable.ConstantState mState;
+        final int mSize;
+
+        Entry(Drawable.ConstantState state, int size) {
+            mState = state;
+            mSize = size;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package it.imwatch.toolkit;
+
+/**
+ * The overlay menu visibility and auto-hiding logic, free of any Android
+ * dependency so that it can be exercised and benchmarked on a plain JVM.
+ * <p/>
+ * The menu goes through four states: {@link #STATE_HIDDEN}, {@link #STATE_SHOWING},
+ * {@link #STATE_VISIBLE} and {@link #STATE_HIDING}. The host view asks for
+ * transitions with {@link #requestShow()} and {@link #requestHide()}, runs the
+ * animations when told to, and reports back when they end.
+ * <p/>
+ * Auto-hiding tracks a monotonic "hide-at" deadline: extending it is a field
+ * write, and the injected {@link Timer} is only armed when it isn't pending
+ * already. When the timer fires before the deadline, {@link #onTimeout()}
+ * re-arms it once for the remaining time. Time is read from the injected
+ * {@link Clock}.
+ * <p/>
+ * This class is not thread-safe, and never allocates after construction.
+ */
+public final class MenuStateMachine {
+
+    /** The menu is hidden. */
+    public static final int STATE_HIDDEN = 0;
+
+    /** The menu is animating to appear. */
+    public static final int STATE_SHOWING = 1;
+
+    /** The menu is shown. */
+    public static final int STATE_VISIBLE = 2;
+
+    /** The menu is animating to disappear. */
+    public static final int STATE_HIDING = 3;
+
+    /** Indicates that no deadline is set. */
+    private static final long NO_DEADLINE = Long.MIN_VALUE;
+
+    private final Clock mClock;
+    private final Timer mTimer;
+
+    private int mState = STATE_HIDDEN;
+    private boolean mAutoHide = true;
+    private long mAutoHideDelay = 4000;
+    private long mHideAt = NO_DEADLINE;
+    private long mArmedAt = NO_DEADLINE;
+    private boolean mPaused;
+    private long mPausedRemaining = -1;
+
+    /**
+     * Initializes the state machine.
+     *
+     * @param clock The clock to read the time from.
+     * @param timer The timer to arm for auto-hiding.
+     */
+    public MenuStateMachine(Clock clock, Timer timer) {
+        mClock = clock;
+        mTimer = timer;
+    }
+
+    /**
+     * Asks for the menu to be shown. If the menu is hidden or hiding, it
+     * starts appearing; if it's shown, the auto-hide deadline is extended.
+     *
+     * @return Returns true if the host must start the appearing animation,
+     *         reversing the hiding one if it's running.
+     */
+    public boolean requestShow() {
+        switch (mState) {
+            case STATE_HIDDEN:
+            case STATE_HIDING:
+                mState = STATE_SHOWING;
+                return true;
+
+            case STATE_VISIBLE:
+                extendAutoHide();
+                return false;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Asks for the menu to be hidden. If the menu is shown or showing, it
+     * starts hiding. Does nothing if it's already hidden or hiding.
+     *
+     * @return Returns true if the host must start the hiding animation,
+     *         reversing the appearing one if it's running.
+     */
+    public boolean requestHide() {
+        if (mState == STATE_SHOWING || mState == STATE_VISIBLE) {
+            mState = STATE_HIDING;
+            mHideAt = NO_DEADLINE;
+            mPausedRemaining = -1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Jumps straight to the shown state, without any transition, e.g. when
+     * restoring a saved state. Does nothing unless the menu is hidden.
+     *
+     * @param remaining The auto-hide time left, in milliseconds, or a negative
+     *                  value to count down the whole auto-hide delay.
+     *
+     * @return Returns true if the host must show the menu right away.
+     */
+    public boolean restoreVisible(long remaining) {
+        if (mState != STATE_HIDDEN) {
+            return false;
+        }
+
+        mState = STATE_VISIBLE;
+        scheduleAutoHide(remaining >= 0 ? remaining : mAutoHideDelay);
+        return true;
+    }
+
+    /**
+     * Reports the end of the appearing animation, and starts counting down
+     * to auto-hide.
+     *
+     * @return Returns true if the menu is now shown, false if the report
+     *         was stale (e.g. the menu started hiding in the meantime).
+     */
+    public boolean onShowFinished() {
+        if (mState != STATE_SHOWING) {
+            return false;
+        }
+
+        mState = STATE_VISIBLE;
+        extendAutoHide();
+        return true;
+    }
+
+    /**
+     * Reports the end of the hiding animation.
+     *
+     * @return Returns true if the menu is now hidden, false if the report
+     *         was stale (e.g. the menu started showing in the meantime).
+     */
+    public boolean onHideFinished() {
+        if (mState != STATE_HIDING) {
+            return false;
+        }
+
+        mState = STATE_HIDDEN;
+        mHideAt = NO_DEADLINE;
+        mPausedRemaining = -1;
+        if (mArmedAt != NO_DEADLINE) {
+            mArmedAt = NO_DEADLINE;
+            mTimer.cancel();
+        }
+        return true;
+    }
+
+    /** Suspends auto-hiding, e.g. while the user is touching the menu. */
+    public void suspendAutoHide() {
+        mHideAt = NO_DEADLINE;
+        mPausedRemaining = -1;
+    }
+
+    /**
+     * Pauses the auto-hide countdown, e.g. while the menu is not on screen,
+     * and cancels the timer. The time left is kept for {@link #resume()}.
+     */
+    public void pause() {
+        if (mPaused) {
+            return;
+        }
+        mPaused = true;
+
+        mPausedRemaining = mHideAt == NO_DEADLINE ? -1 : Math.max(0, mHideAt - mClock.uptimeMillis());
+        mHideAt = NO_DEADLINE;
+        if (mArmedAt != NO_DEADLINE) {
+            mArmedAt = NO_DEADLINE;
+            mTimer.cancel();
+        }
+    }
+
+    /** Resumes the auto-hide countdown paused by {@link #pause()}, with the time it had left. */
+    public void resume() {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+
+        if (mPausedRemaining >= 0 && mState == STATE_VISIBLE) {
+            scheduleAutoHide(mPausedRemaining);
+        }
+        mPausedRemaining = -1;
+    }
+
+    /**
+     * Gets a value indicating whether the auto-hide countdown is paused.
+     *
+     * @return Returns true if the countdown is paused.
+     */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Resumes auto-hiding, e.g. when the user stops touching the menu: the
+     * deadline is set to the auto-hide delay from now. Does nothing unless
+     * the menu is shown.
+     */
+    public void resumeAutoHide() {
+        if (mState == STATE_VISIBLE) {
+            extendAutoHide();
+        }
+    }
+
+    /**
+     * Reports that the timer has fired.
+     *
+     * @return Returns true if the host must hide the menu now.
+     */
+    public boolean onTimeout() {
+        mArmedAt = NO_DEADLINE;
+        if (mHideAt == NO_DEADLINE) {
+            // Auto-hiding has been suspended in the meantime
+            return false;
+        }
+
+        final long remaining = mHideAt - mClock.uptimeMillis();
+        if (remaining > 0) {
+            // The deadline has been moved forward since the timer was armed
+            mArmedAt = mHideAt;
+            mTimer.arm(remaining);
+            return false;
+        }
+
+        mHideAt = NO_DEADLINE;
+        return mAutoHide;
+    }
+
+    /**
+     * Gets the time left before the menu auto-hides.
+     *
+     * @return Returns the time left, in milliseconds, or -1 if auto-hiding
+     *         is not counting down.
+     */
+    public long getAutoHideRemaining() {
+        if (mPaused) {
+            return mPausedRemaining;
+        }
+        if (mHideAt == NO_DEADLINE) {
+            return -1;
+        }
+        return Math.max(0, mHideAt - mClock.uptimeMillis());
+    }
+
+    /**
+     * Gets the current state.
+     *
+     * @return Returns one of the STATE_* values.
+     */
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Gets a value indicating whether the menu is on screen, including
+     * while it's animating.
+     *
+     * @return Returns true unless the menu is hidden.
+     */
+    public boolean isVisible() {
+        return mState != STATE_HIDDEN;
+    }
+
+    /**
+     * Gets a value indicating whether the menu is animating to appear.
+     *
+     * @return Returns true if the menu is animating to appear.
+     */
+    public boolean isShowing() {
+        return mState == STATE_SHOWING;
+    }
+
+    /**
+     * Gets a value indicating whether the menu is animating to disappear.
+     *
+     * @return Returns true if the menu is animating to disappear.
+     */
+    public boolean isHiding() {
+        return mState == STATE_HIDING;
+    }
+
+    /**
+     * Gets a value indicating whether the menu is animating.
+     *
+     * @return Returns true if the menu is animating.
+     */
+    public boolean isAnimating() {
+        return mState == STATE_SHOWING || mState == STATE_HIDING;
+    }
+
+    /**
+     * Gets a value indicating whether auto-hiding is enabled.
+     *
+     * @return Returns true if auto-hiding is enabled.
+     */
+    public boolean isAutoHideEnabled() {
+        return mAutoHide;
+    }
+
+    /**
+     * Sets whether auto-hiding is enabled. Takes effect immediately.
+     *
+     * @param autoHide true to enable auto-hiding, otherwise false.
+     */
+    public void setAutoHideEnabled(boolean autoHide) {
+        mAutoHide = autoHide;
+    }
+
+    /**
+     * Gets the auto-hiding delay.
+     *
+     * @return Returns the auto-hiding delay, in milliseconds.
+     */
+    public long getAutoHideDelay() {
+        return mAutoHideDelay;
+    }
+
+    /**
+     * Sets the auto-hiding delay. Takes effect from the next time the
+     * deadline is extended.
+     *
+     * @param delay The auto-hiding delay, in milliseconds.
+     */
+    public void setAutoHideDelay(long delay) {
+        mAutoHideDelay = delay;
+    }
+
+    /** Moves the auto-hide deadline to the auto-hide delay from now. */
+    private void extendAutoHide() {
+        scheduleAutoHide(mAutoHideDelay);
+    }
+
+    /**
+     * Sets the auto-hide deadline, arming the timer only if it is not
+     * pending already, or if it would fire too late.
+     *
+     * @param delay The time until the deadline, in milliseconds.
+     */
+    private void scheduleAutoHide(long delay) {
+        if (mPaused) {
+            // Counted down when resumed
+            mPausedRemaining = delay;
+            return;
+        }
+
+        mHideAt = mClock.uptimeMillis() + delay;
+
+        if (mArmedAt == NO_DEADLINE || mArmedAt > mHideAt) {
+            mArmedAt = mHideAt;
+            mTimer.arm(delay);
+        }
+    }
+
+    /** The time source of the state machine. */
+    public interface Clock {
+
+        /**
+         * Gets the current time of a monotonic clock.
+         *
+         * @return Returns the current time, in milliseconds.
+         */
+        long uptimeMillis();
+    }
+
+    /** The timer used to implement auto-hiding. */
+    public interface Timer {
+
+        /**
+         * Arms the timer, replacing any pending timeout. When it fires, the
+         * host must call {@link MenuStateMachine#onTimeout()}.
+         *
+         * @param delay The delay, in milliseconds.
+         */
+        void arm(long delay);
+
+        /** Cancels the pending timeout, if any. */
+        void cancel();
+    }
+}
@@ -2,18 +2,33 @@ package it.imwatch.toolkit;
 
 import android.content.Context;
 import android.content.res.TypedArray;
-import android.os.Handler;
+import android.database.DataSetObserver;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.Region;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.AttributeSet;
-import android.util.Log;
-import android.view.Gravity;
-import android.view.LayoutInflater;
 import android.view.MotionEvent;
+import android.view.VelocityTracker;
 import android.view.View;
+import android.view.ViewConfiguration;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
+import android.view.animation.Interpolator;
+import android.view.animation.Transformation;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.RelativeLayout;
 import it.imwatch.common.util.DebugHelper;
+import it.imwatch.common.util.EventTracer;
+
+import java.util.ArrayList;
 
 /**
  * This class implements a standard i'm Watch overlay menu.
@@ -59,27 +74,170 @@ import it.imwatch.common.util.DebugHelper;
  * Default value: {@code 250} ms.</li>
  * <li><b>{@code fadeOutDuration}</b> Menu hiding animation duration, in milliseconds.
  * Default value: {@code 500} ms.</li>
+ * <li><b>{@code menuInAnimation}</b> The menu appearing animation resource. The animation
+ * duration is overridden by {@code fadeInDuration}. Default value: a fade and slide in.</li>
+ * <li><b>{@code menuOutAnimation}</b> The menu hiding animation resource. The animation
+ * duration is overridden by {@code fadeOutDuration}. Default value: a fade and slide out.</li>
+ * <li><b>{@code menuInInterpolator}</b> The menu appearing interpolator, used on Android 4.1+
+ * unless a custom {@code menuInAnimation} is set. Default value: a decelerating one.</li>
+ * <li><b>{@code menuOutInterpolator}</b> The menu hiding interpolator, used on Android 4.1+
+ * unless a custom {@code menuOutAnimation} is set. Default value: an accelerating one.</li>
+ * <li><b>{@code hardwareLayerAnimation}</b> Render the menu in a hardware layer while it's
+ * animating, on devices that support it. Default value: {@code false}.</li>
+ * <li><b>{@code compactRendering}</b> Draw both buttons in a single lightweight view instead
+ * of using two {@code ImageButton}s. In this mode {@link #getLeftButton()} and
+ * {@link #getRightButton()} return null; use {@link #setOnLeftButtonClickListener(OnClickListener)}
+ * and {@link #setOnRightButtonClickListener(OnClickListener)} instead.
+ * Default value: {@code false}.</li>
+ * <li><b>{@code lazyInit}</b> Only build the buttons when the menu is first shown, or
+ * when {@link #getLeftButton()} or {@link #getRightButton()} is first called. Screens
+ * that never show their menu then pay almost nothing for it. Default value: {@code false}.</li>
  * </ul>
+ * <p/>
+ * When more than two actions are needed, set an {@link OverlayMenuAdapter}
+ * with {@link #setAdapter(OverlayMenuAdapter)}. Its actions replace the left
+ * and right buttons, and their button views are recycled when the actions change.
+ * <p/>
+ * To change the buttons icons at runtime, prefer {@link #setLeftButtonIcon(int, boolean)}
+ * and {@link #setRightButtonIcon(int, boolean)} to setting them on the buttons: the
+ * buttons keep their size, so the screen isn't laid out again, and the icons can
+ * cross-fade.
  */
 public class OverlayMenu extends RelativeLayout {
 
-    private static final boolean DEBUG = DebugHelper.isDebug();
+    static {
+        // Never check the debug marker files on the UI thread
+        DebugHelper.resolveAsync();
+    }
+
+    /** The menu has been hidden by a call to {@link #hideMenu()}. */
+    public static final int HIDE_REASON_EXPLICIT = 0;
+
+    /** The menu has been hidden by the auto-hiding mechanism. */
+    public static final int HIDE_REASON_AUTO = 1;
+
+    /** The transitions animate both the menu alpha and position. */
+    public static final int ANIMATION_QUALITY_FULL = 0;
+
+    /** The transitions only animate the menu position, on Android 4.1+ with the default animations. */
+    public static final int ANIMATION_QUALITY_TRANSLATE_ONLY = 1;
+
+    /** The transitions only animate the menu position, in half their duration. */
+    public static final int ANIMATION_QUALITY_SHORTENED = 2;
+
+    /** The menu is shown and hidden without transitions. */
+    public static final int ANIMATION_QUALITY_INSTANT = 3;
+
+    /** The best quality used while the system is in battery saver mode. */
+    private static final int POWER_SAVE_ANIMATION_QUALITY = ANIMATION_QUALITY_SHORTENED;
+
+    /** The clock driving the menus state machines. */
+    private static final MenuStateMachine.Clock UPTIME_CLOCK = new MenuStateMachine.Clock() {
+
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+    };
+
+    /** The height of the edge swipe area, in density independent pixels. */
+    private static final int SWIPE_EDGE_SIZE_DIP = 24;
+
+    // The edge swipe gesture states
+    private static final int SWIPE_NONE = 0;
+    private static final int SWIPE_CANDIDATE = 1;
+    private static final int SWIPE_DRAGGING = 2;
+
+    /** The maximum number of detached action buttons kept for reuse. */
+    private static final int MAX_SCRAP_BUTTONS = 4;
+
+    // The diagnostic events, see getEventTracer()
+    private static final int TRACE_SHOW_REQUESTED = 0;
+    private static final int TRACE_SHOW_STARTED = 1;
+    private static final int TRACE_SHOW_ENDED = 2;
+    private static final int TRACE_HIDE_REQUESTED = 3;
+    private static final int TRACE_HIDE_STARTED = 4;
+    private static final int TRACE_HIDE_ENDED = 5;
+    private static final int TRACE_AUTO_HIDE = 6;
+    private static final int TRACE_AUTO_HIDE_DELAYED = 7;
+    private static final int TRACE_LEFT_BUTTON_VISIBILITY = 8;
+    private static final int TRACE_RIGHT_BUTTON_VISIBILITY = 9;
+
+    /** The process-wide diagnostic events tracer. */
+    private static final EventTracer sTracer = new EventTracer("OverlayMenu", 256, new String[] {
+            "SHOW_REQUESTED", "SHOW_STARTED", "SHOW_ENDED", "HIDE_REQUESTED", "HIDE_STARTED",
+            "HIDE_ENDED", "AUTO_HIDE", "AUTO_HIDE_DELAYED", "LEFT_BUTTON_VISIBILITY", "RIGHT_BUTTON_VISIBILITY"
+    });
+
+    /** The empty transition listeners registry. */
+    private static final OnMenuTransitionListener[] NO_TRANSITION_LISTENERS = new OnMenuTransitionListener[0];
+
+    /** The process-wide metrics sink, or null. */
+    private static volatile MetricsSink sMetricsSink;
+
     private ImageButton mLeftButton, mRightButton;
+    private CompactMenuBar mCompactBar;
+    private boolean mCompactRendering;
+    private boolean mMaterialized;
+    private int mLeftIconResId, mRightIconResId;
+    private Drawable mLeftIcon, mRightIcon;
+    private OnClickListener mLeftClickListener, mRightClickListener;
+    private IconSwapDrawable mLeftIconSwap, mRightIconSwap;
+    private Rect[] mHitRects = new Rect[2];
+    private int mHitRectCount;
+    private int mTouchSlop;
+
+    private int mSwipeState = SWIPE_NONE;
+    private int mSwipeEdgeSize;
+    private int mMinFlingVelocity, mMaxFlingVelocity;
+    private float mSwipeDownY;
+    private int mSwipeHeight;
+    private VelocityTracker mVelocityTracker;
+
+    private OverlayMenuAdapter mAdapter;
+    private DataSetObserver mAdapterObserver;
+    private boolean mAdapterObserved;
+    private int mBoundLeftActionCount;
+    private final ArrayList<ImageButton> mActionButtons = new ArrayList<ImageButton>();
+    private final ArrayList<ImageButton> mScrapButtons = new ArrayList<ImageButton>(MAX_SCRAP_BUTTONS);
+    private OnClickListener mActionClickListener;
 
-    private int mAutoHideDelay;
     private int mFadeOutDuration;
     private int mFadeInDuration;
 
-    private Handler mHandler;
+    private AutoHideScheduler mScheduler;
+    private AutoHideScheduler.Timeout mAutoHideTimeout;
+    private MenuStateMachine mStateMachine;
     private Animation mAnimMenuIn, mAnimMenuOut;
-    private boolean mVisible;
-    private AutohideRunnable mAutoHideRunnable;
-    private boolean mAutoHide;
-    private boolean mAnimatingIn, mAnimatingOut;
+    private Animation.AnimationListener mAnimMenuInListener, mAnimMenuOutListener;
+    private ReversingAnimation mReversingAnimation;
+    private MenuAnimator mAnimator;
+    private Interpolator mInInterpolator, mOutInterpolator;
+    private int mInInterpolatorResId = android.R.anim.decelerate_interpolator;
+    private int mOutInterpolatorResId = android.R.anim.accelerate_interpolator;
+    private Transformation mTransformationFrom, mTransformationTo;
+    private boolean mShowPending;
+    private Runnable mShowRunnable;
+    private Runnable mReleaseAnimationsRunnable;
+    private boolean mPaused;
+    private int mAnimMenuInResId = R.anim.menu_in;
+    private int mAnimMenuOutResId = R.anim.menu_out;
     private boolean mTouchSuspendsAutoHide;
+    private boolean mHardwareLayerAnimation;
     private int mLeftButtonVisibility;
     private int mRightButtonVisibility;
     private OnMenuStateChangeListener mStateChangeListener;
+    private FrameStats mFrameStats;
+    private final AnimationQualityGovernor mQualityGovernor = new AnimationQualityGovernor();
+    private ViewTreeObserver.OnPreDrawListener mFrameListener;
+    private boolean mTrackingFrames;
+    private boolean mMeasuringFrames;
+    private boolean mInTransition;
+    private boolean mTransitionShowing;
+    private OnMenuTransitionListener[] mTransitionListeners = NO_TRANSITION_LISTENERS;
+    private long mShowRequestNanos;
+    private boolean mWindowTranslucent;
+    private boolean mWindowTranslucentResolved;
 
     /**
      * Initializes an instance of the overlay menu.
@@ -114,9 +272,6 @@ public class OverlayMenu extends RelativeLayout {
         setPersistentDrawingCache(PERSISTENT_NO_CACHE);
         setAnimationCacheEnabled(false);
 
-        setGravity(Gravity.BOTTOM | Gravity.FILL_HORIZONTAL);
-        LayoutInflater.from(context).inflate(R.layout.menu_layout, this, true);
-
         initFields(attrs);
     }
 
@@ -131,368 +286,1954 @@ public class OverlayMenu extends RelativeLayout {
      * @param attrs The initialization attributes, or null.
      */
     private void initFields(AttributeSet attrs) {
-        mHandler = new Handler();
-        mAutoHideRunnable = new AutohideRunnable();
+        final boolean measure = sMetricsSink != null;
+        final long startNanos = measure ? System.nanoTime() : 0L;
+
+        final ViewConfiguration configuration = ViewConfiguration.get(getContext());
+        mTouchSlop = configuration.getScaledTouchSlop();
+        mMinFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+        mMaxFlingVelocity = configuration.getScaledMaximumFlingVelocity();
+        mSwipeEdgeSize = (int) (SWIPE_EDGE_SIZE_DIP * getResources().getDisplayMetrics().density + 0.5f);
+        mStateMachine = new MenuStateMachine(UPTIME_CLOCK, new AutohideRunnable());
+        mFrameStats = new FrameStats(getContext());
+        if (!isInEditMode()) {
+            DebugHelper.watchMediaState(getContext());
+        }
+        if (!isInEditMode()) {
+            PowerSaveMonitor.start(getContext());
+        }
 
-        mVisible = false;
         super.setEnabled(false);
         super.setVisibility(View.GONE);
 
-        initAnimations();
-
-        mLeftButton = (ImageButton) findViewById(R.id.__menubar_left_button);
-        mRightButton = (ImageButton) findViewById(R.id.__menubar_right_button);
+        initAnimationListeners();
 
-        // Get values from attributes, if provided
-        if (attrs != null) {
-            TypedArray array = getContext().obtainStyledAttributes(attrs, R.styleable.OverlayMenu, 0, 0);
+        // Get values from attributes, falling back to the theme ones
+        TypedArray array = getContext().obtainStyledAttributes(attrs, R.styleable.OverlayMenu, 0, 0);
 
-            mLeftButtonVisibility = array.getInt(R.styleable.OverlayMenu_leftButtonVisibility, View.VISIBLE);
-            mLeftButton.setVisibility(mLeftButtonVisibility);
-
-            mRightButtonVisibility = array.getInt(R.styleable.OverlayMenu_rightButtonVisibility, View.GONE);
-            mRightButton.setVisibility(mRightButtonVisibility);
+        // Only keep the icons resource IDs, they're loaded when the buttons are built
+        mLeftIconResId = array.getResourceId(R.styleable.OverlayMenu_leftButtonIcon, 0);
+        if (mLeftIconResId == 0) {
+            mLeftIcon = array.getDrawable(R.styleable.OverlayMenu_leftButtonIcon);
+        }
+        mRightIconResId = array.getResourceId(R.styleable.OverlayMenu_rightButtonIcon, 0);
+        if (mRightIconResId == 0) {
+            mRightIcon = array.getDrawable(R.styleable.OverlayMenu_rightButtonIcon);
+        }
 
-            mAutoHide = array.getBoolean(R.styleable.OverlayMenu_autoHide, true);
-            mTouchSuspendsAutoHide = array.getBoolean(R.styleable.OverlayMenu_touchSuspendsAutoHide, true);
-            mAutoHideDelay = array.getInt(R.styleable.OverlayMenu_autoHideDelay, 4000);
-            mFadeInDuration = array.getInt(R.styleable.OverlayMenu_fadeInDuration, 250);
-            mFadeOutDuration = array.getInt(R.styleable.OverlayMenu_fadeOutDuration, 500);
+        mCompactRendering = array.getBoolean(R.styleable.OverlayMenu_compactRendering, false);
+        mLeftButtonVisibility = array.getInt(R.styleable.OverlayMenu_leftButtonVisibility, View.VISIBLE);
+        mRightButtonVisibility = array.getInt(R.styleable.OverlayMenu_rightButtonVisibility, View.GONE);
+
+        mStateMachine.setAutoHideEnabled(array.getBoolean(R.styleable.OverlayMenu_autoHide, true));
+        mTouchSuspendsAutoHide = array.getBoolean(R.styleable.OverlayMenu_touchSuspendsAutoHide, true);
+        mStateMachine.setAutoHideDelay(array.getInt(R.styleable.OverlayMenu_autoHideDelay, 4000));
+        mFadeInDuration = array.getInt(R.styleable.OverlayMenu_fadeInDuration, 250);
+        mFadeOutDuration = array.getInt(R.styleable.OverlayMenu_fadeOutDuration, 500);
+        mAnimMenuInResId = array.getResourceId(R.styleable.OverlayMenu_menuInAnimation, R.anim.menu_in);
+        mAnimMenuOutResId = array.getResourceId(R.styleable.OverlayMenu_menuOutAnimation, R.anim.menu_out);
+        mInInterpolatorResId = array.getResourceId(R.styleable.OverlayMenu_menuInInterpolator,
+                                                   android.R.anim.decelerate_interpolator);
+        mOutInterpolatorResId = array.getResourceId(R.styleable.OverlayMenu_menuOutInterpolator,
+                                                    android.R.anim.accelerate_interpolator);
+        mHardwareLayerAnimation = array.getBoolean(R.styleable.OverlayMenu_hardwareLayerAnimation, false);
+        final boolean lazyInit = array.getBoolean(R.styleable.OverlayMenu_lazyInit, false);
+
+        array.recycle();
+
+        long buildNanos = 0L;
+        if (!lazyInit) {
+            final long buildStartNanos = measure ? System.nanoTime() : 0L;
+            ensureMaterialized();
+            buildNanos = measure ? System.nanoTime() - buildStartNanos : 0L;
+        }
 
-            array.recycle();
+        final MetricsSink sink = sMetricsSink;
+        if (measure && sink != null) {
+            sink.onMenuConstructed(this, buildNanos, System.nanoTime() - startNanos);
         }
     }
 
-    /** Initializes the menu appearing and hiding animations. */
-    private void initAnimations() {
-        mAnimMenuIn = AnimationUtils.loadAnimation(this.getContext(), R.anim.menu_in);
-        mAnimMenuIn.setAnimationListener(new Animation.AnimationListener() {
-            @Override
-            public void onAnimationStart(Animation animation) {
-                if (DEBUG) {
-                    Log.d("OverlayMenu", "Menu_IN animation started");
-                }
-                OverlayMenu.super.setVisibility(View.VISIBLE);
-                mLeftButton.setVisibility(mLeftButtonVisibility);
-                mRightButton.setVisibility(mRightButtonVisibility);
-                invalidate();
-
-                mVisible = true;
-                mAnimatingIn = true;
-            }
-
-            @Override
-            public void onAnimationEnd(Animation animation) {
-                if (DEBUG) {
-                    Log.d("OverlayMenu", "Menu_IN animation ended");
-                }
-                OverlayMenu.super.setEnabled(true);
-                OverlayMenu.super.setFocusable(true);
-                OverlayMenu.super.setFocusableInTouchMode(true);
-                mHandler.removeCallbacks(mAutoHideRunnable);
-
-                mAnimatingIn = false;
-                mHandler.postDelayed(mAutoHideRunnable, mAutoHideDelay);
-
-                if (mStateChangeListener != null) {
-                    mStateChangeListener.onStateChanged(isMenuVisible() ? View.VISIBLE : View.GONE);
-                }
-            }
-
-            @Override
-            public void onAnimationRepeat(Animation animation) {
-                // Do nothing... for now
+    /**
+     * Builds the buttons, if they haven't been built yet. In lazy initialization
+     * mode, this is deferred until the menu is first shown, or until the
+     * buttons are first needed.
+     */
+    private void ensureMaterialized() {
+        if (mMaterialized) {
+            return;
+        }
+        mMaterialized = true;
+
+        final Drawable leftIcon = getIcon(mLeftIconResId, mLeftIcon);
+        final Drawable rightIcon = getIcon(mRightIconResId, mRightIcon);
+        mLeftIcon = mRightIcon = null;
+
+        if (mCompactRendering) {
+            mCompactBar = new CompactMenuBar(getContext());
+            mCompactBar.setIcon(CompactMenuBar.LEFT, leftIcon);
+            mCompactBar.setIcon(CompactMenuBar.RIGHT, rightIcon);
+            mCompactBar.setOnButtonClickListener(CompactMenuBar.LEFT, mLeftClickListener);
+            mCompactBar.setOnButtonClickListener(CompactMenuBar.RIGHT, mRightClickListener);
+            mCompactBar.setButtonContentDescription(CompactMenuBar.LEFT,
+                                                    getResources().getText(R.string.menu_description_left));
+            mCompactBar.setButtonContentDescription(CompactMenuBar.RIGHT,
+                                                    getResources().getText(R.string.menu_description_right));
+        }
+        else {
+            mLeftButton = createButton(R.id.__menubar_left_button, R.drawable.menu_bg_left,
+                                       R.string.menu_description_left, "left_button", leftIcon);
+            mRightButton = createButton(R.id.__menubar_right_button, R.drawable.menu_bg_right,
+                                        R.string.menu_description_right, "right_button", rightIcon);
+            mRightButton.setScaleType(ImageView.ScaleType.CENTER_INSIDE);
+            if (mLeftClickListener != null) {
+                mLeftButton.setOnClickListener(mLeftClickListener);
             }
-        });
-
-        mAnimMenuOut = AnimationUtils.loadAnimation(this.getContext(), R.anim.menu_out);
-        mAnimMenuOut.setAnimationListener(new Animation.AnimationListener() {
-            @Override
-            public void onAnimationStart(Animation animation) {
-                OverlayMenu.super.setEnabled(false);
-                OverlayMenu.super.setFocusable(false);
-                OverlayMenu.super.setFocusableInTouchMode(false);
-
-                mAnimatingOut = true;
+            if (mRightClickListener != null) {
+                mRightButton.setOnClickListener(mRightClickListener);
             }
+        }
 
-            @Override
-            public void onAnimationEnd(Animation animation) {
-                OverlayMenu.super.setVisibility(View.GONE);
-                mLeftButton.clearAnimation();
-                mLeftButton.setVisibility(View.GONE);
-                mRightButton.setVisibility(View.GONE);
-
-                mAnimatingOut = false;
-
-                mVisible = false;
-
-                if (mStateChangeListener != null) {
-                    mStateChangeListener.onStateChanged(isMenuVisible() ? View.VISIBLE : View.GONE);
-                }
-            }
+        applyButtonVisibility(mLeftButtonVisibility, mRightButtonVisibility);
 
-            @Override
-            public void onAnimationRepeat(Animation animation) {
-                // Do nothing... for now
-            }
-        });
+        if (mCompactBar != null) {
+            addView(mCompactBar);
+        }
+        else {
+            addView(mLeftButton);
+            addView(mRightButton);
+        }
     }
 
     /**
-     * Set the enabled state of this view. In this class it is overridden
-     * so that it has no effect. An OverlayMenu is always enabled when is
-     * visible, and disabled when it is hidden.
+     * Gets an icon, through the {@link MenuDrawableCache} when it's a resource.
      *
-     * @param enabled Not used at all. Just pass it whatever you want.
+     * @param resId    The icon resource ID, or 0.
+     * @param drawable The icon drawable, used when there's no resource ID.
+     *
+     * @return Returns the icon, or null.
      */
-    @Override
-    public void setEnabled(boolean enabled) {
-        // Do nothing
+    private Drawable getIcon(int resId, Drawable drawable) {
+        return resId != 0 ? MenuDrawableCache.obtain(getContext(), resId) : drawable;
     }
 
     /**
-     * Set the enabled state of this view. Here is overridden so that
-     * View.VISIBLE calls showMenu(), and any other value calls hideMenu().
+     * Sets the background of a button, through the {@link MenuDrawableCache}.
      *
-     * @param visibility Not used at all. Just pass it whatever you want.
+     * @param button          The button.
+     * @param backgroundResId The background resource ID.
      */
-    @Override
-    public void setVisibility(int visibility) {
-        if (visibility == VISIBLE) {
-            showMenu();
+    @SuppressWarnings("deprecation")
+    private void setButtonBackground(View button, int backgroundResId) {
+        final Drawable background = MenuDrawableCache.obtain(getContext(), backgroundResId);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            button.setBackground(background);
         }
         else {
-            hideMenu();
+            button.setBackgroundDrawable(background);
         }
     }
 
     /**
-     * Gets a value indicating if the Overlay Menu is currently animating.
+     * Applies the visibility of the buttons, in either rendering mode.
      *
-     * @return Returns true if the menu is animating.
+     * @param left  The left button visibility.
+     * @param right The right button visibility.
      */
-    public boolean isAnimating() {
-        return mAnimatingIn || mAnimatingOut;
+    private void applyButtonVisibility(int left, int right) {
+        if (!mMaterialized) {
+            return;
+        }
+        if (mCompactBar != null) {
+            mCompactBar.setButtonVisibility(CompactMenuBar.LEFT, left);
+            mCompactBar.setButtonVisibility(CompactMenuBar.RIGHT, right);
+        }
+        else {
+            mLeftButton.setVisibility(left);
+            mRightButton.setVisibility(right);
+        }
     }
 
     /**
-     * Gets a value indicating if the Overlay Menu is currently animating
-     * to disappear.
+     * Creates a menu button. The buttons are built in code rather than inflated
+     * from XML, and are positioned by {@link #onLayout(boolean, int, int, int, int)}.
      *
-     * @return Returns true if the menu is animating to hide itself.
+     * @param id                 The button ID.
+     * @param backgroundResId    The button background resource ID.
+     * @param descriptionResId   The button content description resource ID.
+     * @param tag                The button tag.
+     * @param icon               The button icon, or null.
+     *
+     * @return Returns the new button.
      */
-    public boolean isHiding() {
-        return mAnimatingOut;
+    private ImageButton createButton(int id, int backgroundResId, int descriptionResId, String tag, Drawable icon) {
+        ImageButton button = new ImageButton(getContext());
+        button.setId(id);
+        button.setTag(tag);
+        button.setContentDescription(getResources().getText(descriptionResId));
+        setButtonBackground(button, backgroundResId);
+        button.setAdjustViewBounds(true);
+        button.setImageDrawable(icon);
+        button.setLayoutParams(new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+        return button;
     }
 
     /**
-     * Gets a value indicating if the Overlay Menu is currently animating
-     * to appear.
+     * Measures the menu in a single pass: each visible button is measured
+     * once, wrapping its content, and the menu is as tall as the tallest one.
      *
-     * @return Returns true if the menu is animating to show itself.
+     * @param widthMeasureSpec  The horizontal space requirements imposed by the parent.
+     * @param heightMeasureSpec The vertical space requirements imposed by the parent.
      */
-    public boolean isShowing() {
-        return mAnimatingIn;
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        final int paddingH = getPaddingLeft() + getPaddingRight();
+        final int paddingV = getPaddingTop() + getPaddingBottom();
+        final int childWidthSpec = getChildMeasureSpec(widthMeasureSpec, paddingH, LayoutParams.WRAP_CONTENT);
+        final int childHeightSpec = getChildMeasureSpec(heightMeasureSpec, paddingV, LayoutParams.WRAP_CONTENT);
+
+        int width = 0, height = 0;
+        for (int i = 0, count = getChildCount(); i < count; i++) {
+            final View child = getChildAt(i);
+            if (child.getVisibility() != GONE) {
+                child.measure(childWidthSpec, childHeightSpec);
+                width += child.getMeasuredWidth();
+                height = Math.max(height, child.getMeasuredHeight());
+            }
+        }
+
+        setMeasuredDimension(resolveSize(width + paddingH, widthMeasureSpec),
+                             resolveSize(height + paddingV, heightMeasureSpec));
     }
 
     /**
-     * Gets a value indicating whether the menu is currently visible
-     * or not
+     * Gives the new height to the built-in animator, which translates the
+     * buttons by a fraction of it. A menu that starts hidden is only laid out
+     * once its first transition has started, and its buttons would otherwise
+     * be drawn without the translation until the next frame.
      *
-     * @return Returns true, if the menu is shown, otherwise false.
+     * @param w    The new width.
+     * @param h    The new height.
+     * @param oldw The old width.
+     * @param oldh The old height.
      */
-    public boolean isMenuVisible() {
-        return mVisible && isShown();
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (mAnimator != null) {
+            mAnimator.setTargetHeight(h);
+        }
     }
 
     /**
-     * Shows the Overlay Menu, if it's currently hidden,
-     * or resets the auto-hide timer if it's already visible.
+     * Lays out the buttons: the left one in the bottom-left corner, and
+     * the right one in the bottom-right corner. In compact rendering mode,
+     * the bar spans the whole width at the bottom. When an adapter is set,
+     * the first half of its actions are lined up from the bottom-left
+     * corner, and the rest from the bottom-right corner.
+     *
+     * @param changed Whether this is a new size or position for this view.
+     * @param l       Left position, relative to parent.
+     * @param t       Top position, relative to parent.
+     * @param r       Right position, relative to parent.
+     * @param b       Bottom position, relative to parent.
      */
-    public void showMenu() {
-        if (!mVisible) {
-            if (DEBUG) {
-                Log.d("OverlayMenu", "Showing menu as requested.");
-            }
-            super.setVisibility(View.INVISIBLE);
-            mLeftButton.setVisibility(View.INVISIBLE);
-            mRightButton.setVisibility(View.INVISIBLE);
-            invalidate();
-            mAnimMenuIn.setDuration(mFadeInDuration);
-            mAnimMenuIn.reset();
-
-            post(new Runnable() {
-                @Override
-                public void run() {
-                    // Workaround for Android 1.6 bug that wouldn't start the animation
-                    // unless "something" happened to our View (a focus/touch event, and
-                    // random stuff - even the HierarchyViewer connecting to the Activity!)
-                    OverlayMenu.super.setVisibility(View.VISIBLE);
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        final int bottom = b - t - getPaddingBottom();
 
-                    OverlayMenu.this.startAnimation(mAnimMenuIn);
-                }
-            });
+        if (!mMaterialized) {
+            mHitRectCount = 0;
+            return;
         }
-        else {
-            if (DEBUG) {
-                Log.d("OverlayMenu", "Delaying menu auto-hide as requested.");
-            }
-            mHandler.removeCallbacks(mAutoHideRunnable);
-            mHandler.postDelayed(mAutoHideRunnable, mAutoHideDelay);
+
+        if (mCompactBar != null) {
+            mCompactBar.layout(getPaddingLeft(), bottom - mCompactBar.getMeasuredHeight(),
+                               r - l - getPaddingRight(), bottom);
+            updateHitRects();
+            return;
         }
-    }
 
-    /**
-     * Hides the Overlay Menu, if it's currently visible,
-     * or does nothing if it's already hidden.
-     */
-    public void hideMenu() {
-        if (mVisible) {
-            if (DEBUG) {
-                Log.d("OverlayMenu", "Hiding menu as requested.");
-            }
-            mAnimMenuOut.setDuration(mFadeOutDuration);
-            mAnimMenuOut.reset();
-            this.startAnimation(mAnimMenuOut);
+        if (mAdapter != null) {
+            layoutActionButtons(r - l, bottom);
+            updateHitRects();
+            return;
         }
-    }
 
-    /**
-     * Called by the auto-hiding mechanism after the preset delay
-     * to automatically hide the menu.
-     */
-    private class AutohideRunnable implements Runnable {
+        if (mLeftButton.getVisibility() != GONE) {
+            final int left = getPaddingLeft();
+            mLeftButton.layout(left, bottom - mLeftButton.getMeasuredHeight(),
+                               left + mLeftButton.getMeasuredWidth(), bottom);
+        }
 
-        @Override
-        public void run() {
-            if (mAutoHide) {
-                if (DEBUG) {
-                    Log.d("OverlayMenu", "Auto-hiding menu.");
-                }
-                hideMenu();
-            }
+        if (mRightButton.getVisibility() != GONE) {
+            final int right = r - l - getPaddingRight();
+            mRightButton.layout(right - mRightButton.getMeasuredWidth(), bottom - mRightButton.getMeasuredHeight(),
+                                right, bottom);
         }
+
+        updateHitRects();
     }
 
     /**
-     * Gets a reference to the left menu button.
+     * Lays out the adapter action buttons along the bottom edge.
      *
-     * @return Returns a reference to the left menu button.
+     * @param width  The menu width.
+     * @param bottom The bottom edge of the buttons.
      */
-    public ImageButton getLeftButton() {
-        return mLeftButton;
+    private void layoutActionButtons(int width, int bottom) {
+        final int count = mActionButtons.size();
+        final int leftCount = getLeftActionCount(count);
+
+        int left = getPaddingLeft();
+        for (int i = 0; i < leftCount; i++) {
+            final View button = mActionButtons.get(i);
+            button.layout(left, bottom - button.getMeasuredHeight(), left + button.getMeasuredWidth(), bottom);
+            left += button.getMeasuredWidth();
+        }
+
+        int right = width - getPaddingRight();
+        for (int i = count - 1; i >= leftCount; i--) {
+            final View button = mActionButtons.get(i);
+            button.layout(right - button.getMeasuredWidth(), bottom - button.getMeasuredHeight(), right, bottom);
+            right -= button.getMeasuredWidth();
+        }
     }
 
     /**
-     * Gets the current visibility status of right menu button
-     * when the OverlayMenu is displayed.
+     * Gets the number of actions shown in the bottom-left corner.
      *
-     * @return Returns the visibility status of right menu button.
+     * @param count The total number of actions.
+     *
+     * @return Returns the number of actions on the left side.
      */
-    public int getRightButtonVisibility() {
-        return mRightButtonVisibility;
+    private static int getLeftActionCount(int count) {
+        return (count + 1) / 2;
     }
 
     /**
-     * Gets the current visibility status of the left menu button
-     * when the OverlayMenu is displayed.
-     *
-     * @return Returns the visibility status of left menu button.
+     * Computes the buttons hit rectangles, expanded by the touch slop, so that
+     * the touch events can be tested against them without querying the buttons.
      */
-    public int getLeftButtonVisibility() {
-        return mLeftButtonVisibility;
+    private void updateHitRects() {
+        mHitRectCount = 0;
+
+        if (mCompactBar != null) {
+            final int left = mCompactBar.getLeft(), top = mCompactBar.getTop();
+            for (int i = CompactMenuBar.LEFT; i <= CompactMenuBar.RIGHT; i++) {
+                if (mCompactBar.getButtonVisibility(i) != GONE) {
+                    final Rect bounds = mCompactBar.getButtonBounds(i);
+                    addHitRect(left + bounds.left, top + bounds.top, left + bounds.right, top + bounds.bottom);
+                }
+            }
+            return;
+        }
+
+        for (int i = 0, count = getChildCount(); i < count; i++) {
+            final View child = getChildAt(i);
+            if (child.getVisibility() != GONE) {
+                addHitRect(child.getLeft(), child.getTop(), child.getRight(), child.getBottom());
+            }
+        }
     }
 
     /**
-     * Sets the visibility status of the right menu button
-     * when the OverlayMenu is displayed
+     * Adds a hit rectangle, expanding it by the touch slop.
      *
-     * @param newStatus The new status of the right menu button.
+     * @param left   The button left edge.
+     * @param top    The button top edge.
+     * @param right  The button right edge.
+     * @param bottom The button bottom edge.
      */
-    public void setRightButtonVisibility(int newStatus) {
-        if (DEBUG) {
-            Log.d("OverlayMenu", "Setting right button visibility to " +
-                                 (newStatus == View.GONE ?
-                                  "GONE" :
-                                  (newStatus == View.VISIBLE ? "VISIBLE" : "INVISIBLE")));
+    private void addHitRect(int left, int top, int right, int bottom) {
+        if (mHitRectCount == mHitRects.length) {
+            final Rect[] rects = new Rect[mHitRectCount * 2];
+            System.arraycopy(mHitRects, 0, rects, 0, mHitRectCount);
+            mHitRects = rects;
         }
 
-        mRightButtonVisibility = newStatus;
-        if (isMenuVisible()) {
-            mRightButton.setVisibility(mRightButtonVisibility);
+        Rect rect = mHitRects[mHitRectCount];
+        if (rect == null) {
+            rect = mHitRects[mHitRectCount] = new Rect();
         }
+
+        rect.set(left - mTouchSlop, top - mTouchSlop, right + mTouchSlop, bottom + mTouchSlop);
+        mHitRectCount++;
     }
 
     /**
-     * Sets the visibility status of the left menu button
-     * when the OverlayMenu is displayed
-     *
-     * @param newStatus The new status of the left menu button.
+     * Initializes the menu appearing and hiding animations listeners. The animations
+     * themselves are obtained from the {@link MenuAnimationCache} when first needed.
      */
-    public void setLeftButtonVisibility(int newStatus) {
-        if (DEBUG) {
-            Log.d("OverlayMenu", "Setting left button visibility to " +
-                                 (newStatus == View.GONE ?
-                                  "GONE" :
-                                  (newStatus == View.VISIBLE ? "VISIBLE" : "INVISIBLE")));
-        }
+    private void initAnimationListeners() {
+        mAnimMenuInListener = new Animation.AnimationListener() {
+            @Override
+            public void onAnimationStart(Animation animation) {
+                handleShowStart();
+            }
 
-        mLeftButtonVisibility = newStatus;
-        if (isMenuVisible()) {
-            mLeftButton.setVisibility(mLeftButtonVisibility);
+            @Override
+            public void onAnimationEnd(Animation animation) {
+                handleShowEnd();
+            }
+
+            @Override
+            public void onAnimationRepeat(Animation animation) {
+                // Do nothing... for now
+            }
+        };
+
+        mAnimMenuOutListener = new Animation.AnimationListener() {
+            @Override
+            public void onAnimationStart(Animation animation) {
+                handleHideStart();
+            }
+
+            @Override
+            public void onAnimationEnd(Animation animation) {
+                handleHideEnd();
+            }
+
+            @Override
+            public void onAnimationRepeat(Animation animation) {
+                // Do nothing... for now
+            }
+        };
+    }
+
+    /** Called when the appearing transition starts, with either animation engine. */
+    private void handleShowStart() {
+        trace(TRACE_SHOW_STARTED, 0);
+        super.setVisibility(View.VISIBLE);
+        applyButtonVisibility(mLeftButtonVisibility, mRightButtonVisibility);
+        invalidateButtons();
+        enterAnimationLayer();
+        startTransitionTracking(true);
+    }
+
+    /** Called when the appearing transition ends, with either animation engine. */
+    private void handleShowEnd() {
+        trace(TRACE_SHOW_ENDED, 0);
+        if (!mStateMachine.onShowFinished()) {
+            // The menu has started hiding in the meantime
+            return;
+        }
+        super.setEnabled(true);
+        super.setFocusable(true);
+        super.setFocusableInTouchMode(true);
+        exitAnimationLayer();
+        finishTransitionTracking(true);
+        scheduleAnimationsRelease();
+
+        if (mStateChangeListener != null) {
+            mStateChangeListener.onStateChanged(isMenuVisible() ? View.VISIBLE : View.GONE);
         }
     }
 
+    /** Called when the hiding transition starts, with either animation engine. */
+    private void handleHideStart() {
+        trace(TRACE_HIDE_STARTED, 0);
+        super.setEnabled(false);
+        super.setFocusable(false);
+        super.setFocusableInTouchMode(false);
+        enterAnimationLayer();
+        startTransitionTracking(false);
+    }
 
-    /**
-     * Gets a reference to the right menu button.
-     *
-     * @return Returns a reference to the right menu button.
-     */
-    public ImageButton getRightButton() {
-        return mRightButton;
+    /** Called when the hiding transition ends, with either animation engine. */
+    private void handleHideEnd() {
+        trace(TRACE_HIDE_ENDED, 0);
+        if (!mStateMachine.onHideFinished()) {
+            // The menu has started showing in the meantime
+            return;
+        }
+        finishHiding();
     }
 
     /**
-     * Gets a value indicating wether the menu auto-hiding is currently active.
+     * Gets a value indicating whether the transitions are run by the built-in
+     * {@link MenuAnimator}, rather than by the legacy view animations. That's
+     * the case on Android 4.1+, unless custom animation resources are set.
      *
-     * @return Returns true if menu auto-hiding is currently active, otherwise
-     *         false.
+     * @return Returns true if the built-in animator is used.
      */
-    public boolean getAutoHideEnabled() {
-        return mAutoHide;
+    private boolean usesAnimator() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN &&
+               mAnimMenuInResId == R.anim.menu_in && mAnimMenuOutResId == R.anim.menu_out;
     }
 
     /**
-     * Sets wether the menu auto-hiding is active. Takes effect immediately.
+     * Gets the duration of a transition, for the current animation quality.
      *
-     * @param autoHide true to activate menu auto-hiding, otherwise false.
+     * @param showing True for the appearing transition, false for the hiding one.
+     *
+     * @return Returns the duration, in milliseconds.
      */
-    public void setAutoHideEnabled(boolean autoHide) {
-        mAutoHide = autoHide;
+    private int getTransitionDuration(boolean showing) {
+        final int duration = showing ? mFadeInDuration : mFadeOutDuration;
+
+        switch (getAnimationQuality()) {
+            case ANIMATION_QUALITY_SHORTENED:
+                return duration / 2;
+            case ANIMATION_QUALITY_INSTANT:
+                return 0;
+            default:
+                return duration;
+        }
     }
 
     /**
-     * Gets the registered OnMenuStateChange listener, if any.
+     * Gets the alpha of the hidden menu for the built-in animator, for the
+     * current animation quality.
      *
-     * @return The OnMenuStateChange listener, if any, or null.
+     * @return Returns 1 if the transitions don't fade the menu, 0 otherwise.
      */
-    public OnMenuStateChangeListener getOnMenuStateChangeListener() {
-        return mStateChangeListener;
+    private float getHiddenAlpha() {
+        return getAnimationQuality() >= ANIMATION_QUALITY_TRANSLATE_ONLY ? 1f : 0f;
     }
 
-    /**
-     * Sets the OnMenuStateChange listener.
-     *
-     * @param l The OnMenuStateChange listener, or null.
-     */
-    public void setOnMenuStateChangeListener(OnMenuStateChangeListener l) {
-        mStateChangeListener = l;
+    /** Creates the built-in animator and loads its interpolators, if needed. */
+    private void ensureAnimator() {
+        if (mAnimator != null) {
+            return;
+        }
+
+        mAnimator = new MenuAnimator(this, new MenuAnimator.Listener() {
+
+            @Override
+            public void onAnimatorFrame(float progress) {
+                dispatchTransitionFrame(progress);
+            }
+
+            @Override
+            public void onAnimatorEnd() {
+                if (mStateMachine.isShowing()) {
+                    handleShowEnd();
+                }
+                else if (mStateMachine.isHiding()) {
+                    handleHideEnd();
+                }
+            }
+        });
+        if (mPaused) {
+            mAnimator.pause();
+        }
+        mInInterpolator = AnimationUtils.loadInterpolator(getContext(), mInInterpolatorResId);
+        mOutInterpolator = AnimationUtils.loadInterpolator(getContext(), mOutInterpolatorResId);
     }
 
     /**
-     * Gets the menu appearing animation duration.
+     * Starts a transition with the built-in animator, from the menu current
+     * alpha and translation, so that a running transition is reversed.
+     *
+     * @param showing True to start appearing, false to start hiding.
+     */
+    private void animateTransition(boolean showing) {
+        ensureAnimator();
+
+        if (showing) {
+            if (!mAnimator.isRunning()) {
+                // Start from the hidden state
+                mAnimator.jumpTo(getHiddenAlpha(), 1f);
+            }
+            handleShowStart();
+            mAnimator.animateTo(1f, 0f, getTransitionDuration(true), mInInterpolator);
+        }
+        else {
+            handleHideStart();
+            mAnimator.animateTo(getHiddenAlpha(), 1f, getTransitionDuration(false), mOutInterpolator);
+        }
+    }
+
+    /** Hides the menu views once the menu is hidden, and notifies the listener. */
+    private void finishHiding() {
+        super.setVisibility(View.GONE);
+        if (mLeftButton != null) {
+            mLeftButton.clearAnimation();
+        }
+        applyButtonVisibility(View.GONE, View.GONE);
+        exitAnimationLayer();
+        finishTransitionTracking(false);
+        scheduleAnimationsRelease();
+        if (mAnimator != null) {
+            // Get ready for the legacy animations, should they be set
+            mAnimator.jumpTo(1f, 0f);
+        }
+
+        if (mStateChangeListener != null) {
+            mStateChangeListener.onStateChanged(isMenuVisible() ? View.VISIBLE : View.GONE);
+        }
+    }
+
+    /**
+     * Promotes the menu to a hardware layer for the duration of an animation,
+     * if the hardware layer animation mode is enabled and supported, so that
+     * the buttons aren't redrawn on every frame.
+     */
+    private void enterAnimationLayer() {
+        if (!mHardwareLayerAnimation || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+
+        if (!usesAnimator()) {
+            enterAnimationLayer(this);
+            return;
+        }
+        // The animator moves the buttons, each one gets its own layer
+        for (int i = 0, count = getChildCount(); i < count; i++) {
+            enterAnimationLayer(getChildAt(i));
+        }
+    }
+
+    /**
+     * Promotes a view to a hardware layer. Only called on Android 3.0+.
+     *
+     * @param view The view.
+     */
+    private static void enterAnimationLayer(View view) {
+        view.setLayerType(LAYER_TYPE_HARDWARE, null);
+        if (view.getWindowToken() != null) {
+            view.buildLayer();
+        }
+    }
+
+    /** Drops the hardware layers used during an animation, if any. */
+    private void exitAnimationLayer() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+
+        if (getLayerType() != LAYER_TYPE_NONE) {
+            setLayerType(LAYER_TYPE_NONE, null);
+        }
+        for (int i = 0, count = getChildCount(); i < count; i++) {
+            final View child = getChildAt(i);
+            if (child.getLayerType() != LAYER_TYPE_NONE) {
+                child.setLayerType(LAYER_TYPE_NONE, null);
+            }
+        }
+    }
+
+    /**
+     * Notifies the transition listeners that a transition is starting, and
+     * starts collecting its frame timings if a metrics sink is registered, or
+     * if the animation quality is adaptive.
+     * The frames are tracked through a pre-draw listener that is only
+     * registered while the transition runs, and only if someone needs them.
+     *
+     * @param showing True if the transition is the appearing one.
+     */
+    private void startTransitionTracking(boolean showing) {
+        if (mInTransition) {
+            // The previous transition has been interrupted
+            finishTransitionTracking(mTransitionShowing);
+        }
+        mInTransition = true;
+        mTransitionShowing = showing;
+
+        final OnMenuTransitionListener[] listeners = mTransitionListeners;
+        for (OnMenuTransitionListener listener : listeners) {
+            listener.onTransitionStart(this, showing);
+        }
+
+        final boolean measure = sMetricsSink != null || mQualityGovernor.isAdaptive();
+        if (!measure && listeners.length == 0) {
+            return;
+        }
+
+        if (measure) {
+            mFrameStats.start(System.nanoTime());
+            mMeasuringFrames = true;
+        }
+
+        if (usesAnimator()) {
+            // The animator reports its frames itself
+            return;
+        }
+
+        if (mFrameListener == null) {
+            mFrameListener = new ViewTreeObserver.OnPreDrawListener() {
+
+                @Override
+                public boolean onPreDraw() {
+                    if (isAnimating()) {
+                        dispatchTransitionFrame(getTransitionProgress(getAnimation()));
+                    }
+                    return true;
+                }
+            };
+        }
+
+        if (!mTrackingFrames) {
+            getViewTreeObserver().addOnPreDrawListener(mFrameListener);
+            mTrackingFrames = true;
+        }
+    }
+
+    /**
+     * Reports a transition frame to the metrics sink and the transition listeners.
+     * Called right before each frame is drawn.
+     *
+     * @param progress The fraction of the transition duration elapsed, from 0 to 1.
+     */
+    private void dispatchTransitionFrame(float progress) {
+        if (mMeasuringFrames) {
+            final long duration = mFrameStats.onFrame(System.nanoTime());
+            final MetricsSink sink = sMetricsSink;
+            if (sink != null) {
+                sink.onAnimationFrame(this, mTransitionShowing, duration);
+            }
+        }
+
+        final OnMenuTransitionListener[] listeners = mTransitionListeners;
+        if (listeners.length > 0) {
+            for (OnMenuTransitionListener listener : listeners) {
+                listener.onTransitionProgress(this, mTransitionShowing, progress);
+            }
+        }
+    }
+
+    /**
+     * Computes the progress of a transition animation, as the fraction of
+     * its duration that has elapsed.
+     *
+     * @param animation The running animation, or null.
+     *
+     * @return Returns the progress, from 0 to 1.
+     */
+    private static float getTransitionProgress(Animation animation) {
+        if (animation == null || animation.getStartTime() == Animation.START_ON_FIRST_FRAME) {
+            // Not started yet, it will on this frame
+            return 0f;
+        }
+
+        final long duration = animation.getDuration();
+        if (duration <= 0) {
+            return 1f;
+        }
+
+        final long elapsed = AnimationUtils.currentAnimationTimeMillis() -
+                             animation.getStartTime() - animation.getStartOffset();
+        return Math.max(0f, Math.min(1f, (float) elapsed / duration));
+    }
+
+    /**
+     * Stops tracking the frames of a transition, reports their timings to
+     * the metrics sink, and notifies the transition listeners.
+     *
+     * @param showing True if the transition was the appearing one.
+     */
+    private void finishTransitionTracking(boolean showing) {
+        if (!mInTransition) {
+            return;
+        }
+        mInTransition = false;
+
+        if (mTrackingFrames) {
+            final ViewTreeObserver observer = getViewTreeObserver();
+            if (observer.isAlive()) {
+                observer.removeOnPreDrawListener(mFrameListener);
+            }
+            mTrackingFrames = false;
+        }
+
+        if (mMeasuringFrames) {
+            mQualityGovernor.onTransitionFinished(mFrameStats.getFrames(), mFrameStats.getDroppedFrames());
+
+            final MetricsSink sink = sMetricsSink;
+            if (sink != null) {
+                sink.onAnimationFinished(this, showing, mFrameStats.getElapsedNanos(System.nanoTime()),
+                                         mFrameStats.getFrames(), mFrameStats.getDroppedFrames());
+            }
+        }
+        mMeasuringFrames = false;
+
+        for (OnMenuTransitionListener listener : mTransitionListeners) {
+            listener.onTransitionEnd(this, showing);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        super.dispatchDraw(canvas);
+
+        if (mShowRequestNanos != 0L) {
+            final MetricsSink sink = sMetricsSink;
+            if (sink != null) {
+                sink.onShowLatency(this, System.nanoTime() - mShowRequestNanos);
+            }
+            mShowRequestNanos = 0L;
+        }
+    }
+
+    /**
+     * Checks whether the window the menu is in is translucent, in which case
+     * reporting the transparent gap between the buttons lets the compositor
+     * skip it. In an opaque window it would only cost a region computation
+     * on every traversal. The theme attribute is only read on the first call,
+     * as the menu context theme can't change.
+     *
+     * @return Returns true if the window is translucent.
+     */
+    private boolean isWindowTranslucent() {
+        if (!mWindowTranslucentResolved) {
+            final TypedArray array =
+                    getContext().obtainStyledAttributes(new int[] { android.R.attr.windowIsTranslucent });
+            mWindowTranslucent = array.getBoolean(0, false);
+            array.recycle();
+            mWindowTranslucentResolved = true;
+        }
+        return mWindowTranslucent;
+    }
+
+    /**
+     * Applies the running transition to the buttons added while it runs, or
+     * while the menu is hidden.
+     *
+     * @param child  The child to add.
+     * @param index  The position at which to add the child.
+     * @param params The layout parameters to set on the child.
+     */
+    @Override
+    public void addView(View child, int index, ViewGroup.LayoutParams params) {
+        super.addView(child, index, params);
+        if (mAnimator != null) {
+            mAnimator.applyTo(child);
+        }
+    }
+
+    /**
+     * Invalidates the buttons only, instead of the whole menu width, so that
+     * the content under the gap between them isn't redrawn. Invalidates the
+     * whole menu if it's not been laid out yet.
+     */
+    private void invalidateButtons() {
+        if (mHitRectCount == 0) {
+            invalidate();
+            return;
+        }
+
+        for (int i = 0; i < mHitRectCount; i++) {
+            invalidate(mHitRects[i]);
+        }
+    }
+
+    /**
+     * Reports the buttons as the only opaque areas of the menu: the gap
+     * between them is left in the transparent region, so that the window
+     * compositor doesn't blend it when the window is translucent.
+     *
+     * @param region The transparent region of the window.
+     *
+     * @return Returns true, as the menu itself is transparent.
+     */
+    @Override
+    public boolean gatherTransparentRegion(Region region) {
+        if (region == null || getVisibility() != VISIBLE || !mMaterialized) {
+            return true;
+        }
+        // The menu has no drawing of its own, unless a background has been set
+        if (getBackground() != null) {
+            return super.gatherTransparentRegion(region);
+        }
+
+        for (int i = 0, count = getChildCount(); i < count; i++) {
+            final View child = getChildAt(i);
+            if (child.getVisibility() == VISIBLE) {
+                child.gatherTransparentRegion(region);
+            }
+        }
+        return true;
+    }
+
+    /** Obtains the menu appearing and hiding animations from the cache, if needed. */
+    private void ensureAnimations() {
+        if (mAnimMenuIn == null) {
+            mAnimMenuIn = MenuAnimationCache.obtain(getContext(), mAnimMenuInResId);
+            mAnimMenuIn.setAnimationListener(mAnimMenuInListener);
+        }
+
+        if (mAnimMenuOut == null) {
+            mAnimMenuOut = MenuAnimationCache.obtain(getContext(), mAnimMenuOutResId);
+            mAnimMenuOut.setAnimationListener(mAnimMenuOutListener);
+        }
+    }
+
+    /**
+     * Gives the menu animations back to the cache once the transition that has
+     * just ended is done with them, so that the other menus on screen can use
+     * them instead of parsing their own. The release is posted, as the view
+     * still refers to the ended animation until the current frame is drawn.
+     */
+    private void scheduleAnimationsRelease() {
+        if (mAnimMenuIn == null && mAnimMenuOut == null) {
+            return;
+        }
+
+        if (mReleaseAnimationsRunnable == null) {
+            mReleaseAnimationsRunnable = new Runnable() {
+
+                @Override
+                public void run() {
+                    // Another transition may have started in the meantime
+                    if (!isAnimating() && !mShowPending) {
+                        releaseAnimations();
+                    }
+                }
+            };
+        }
+        removeCallbacks(mReleaseAnimationsRunnable);
+        post(mReleaseAnimationsRunnable);
+    }
+
+    /** Gives the menu appearing and hiding animations back to the cache, if held. */
+    private void releaseAnimations() {
+        if (mAnimMenuIn != null) {
+            MenuAnimationCache.recycle(mAnimMenuInResId, mAnimMenuIn);
+            mAnimMenuIn = null;
+        }
+
+        if (mAnimMenuOut != null) {
+            MenuAnimationCache.recycle(mAnimMenuOutResId, mAnimMenuOut);
+            mAnimMenuOut = null;
+        }
+    }
+
+    /**
+     * Sets the menu appearing and hiding animations. The animations are loaded
+     * through the {@link MenuAnimationCache}, and their durations are overridden
+     * by {@link #setAnimInDuration(int)} and {@link #setAnimOutDuration(int)}.
+     *
+     * @param inAnimResId  The menu appearing animation resource ID.
+     * @param outAnimResId The menu hiding animation resource ID.
+     */
+    public void setMenuAnimations(int inAnimResId, int outAnimResId) {
+        if (isAnimating()) {
+            throw new IllegalStateException("The animations can't be changed while the menu is animating.");
+        }
+
+        releaseAnimations();
+        mAnimMenuInResId = inAnimResId;
+        mAnimMenuOutResId = outAnimResId;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        if (isWindowTranslucent()) {
+            // Let the window know that the gap between the buttons is see-through
+            getParent().requestTransparentRegion(this);
+        }
+
+        if (getWindowVisibility() == VISIBLE) {
+            resumeActivity();
+        }
+
+        if (mAdapter != null && !mAdapterObserved) {
+            // The actions may have changed while we weren't observing them
+            observeAdapter(true);
+            populateActions();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void onDetachedFromWindow() {
+        cancelSwipe();
+        pauseActivity();
+        super.onDetachedFromWindow();
+
+        if (mAdapterObserved) {
+            observeAdapter(false);
+        }
+
+        // Let other menus reuse our animations while we're not on screen
+        if (mReleaseAnimationsRunnable != null) {
+            removeCallbacks(mReleaseAnimationsRunnable);
+        }
+        if (!isAnimating()) {
+            releaseAnimations();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+
+        if (visibility == VISIBLE) {
+            resumeActivity();
+        }
+        else {
+            pauseActivity();
+        }
+    }
+
+    /**
+     * Pauses the auto-hide countdown and the running transition while the menu
+     * is not on screen, so that nothing stays queued on the main looper.
+     */
+    private void pauseActivity() {
+        if (mPaused) {
+            return;
+        }
+        mPaused = true;
+
+        mStateMachine.pause();
+        if (mAnimator != null) {
+            mAnimator.pause();
+        }
+        if (mShowPending) {
+            removeCallbacks(mShowRunnable);
+        }
+    }
+
+    /**
+     * Resumes the auto-hide countdown, with the time it had left, and the
+     * running transition when the menu is back on screen.
+     */
+    private void resumeActivity() {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+
+        mStateMachine.resume();
+        if (mMeasuringFrames) {
+            // The frames haven't been late, there just weren't any
+            mFrameStats.skipGap(System.nanoTime());
+        }
+        if (mAnimator != null) {
+            mAnimator.resume();
+        }
+        if (mShowPending) {
+            post(mShowRunnable);
+        }
+    }
+
+    /**
+     * Saves the menu visibility, the buttons visibility and the auto-hide
+     * time left. As for any view, this only happens if the menu has an ID.
+     *
+     * @return Returns the saved state.
+     */
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        final SavedState state = new SavedState(super.onSaveInstanceState());
+
+        // A menu that is appearing is saved as shown, one that is hiding as hidden
+        state.mVisible = mStateMachine.isVisible() && !mStateMachine.isHiding();
+        state.mLeftButtonVisibility = mLeftButtonVisibility;
+        state.mRightButtonVisibility = mRightButtonVisibility;
+        state.mAutoHideRemaining = mStateMachine.getAutoHideRemaining();
+        return state;
+    }
+
+    /**
+     * Restores the state saved by {@link #onSaveInstanceState()}. A menu that
+     * was shown is shown right away, without any animation, and the auto-hide
+     * countdown resumes where it stopped.
+     *
+     * @param state The saved state.
+     */
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+
+        final SavedState savedState = (SavedState) state;
+        super.onRestoreInstanceState(savedState.getSuperState());
+
+        mLeftButtonVisibility = savedState.mLeftButtonVisibility;
+        mRightButtonVisibility = savedState.mRightButtonVisibility;
+
+        if (savedState.mVisible) {
+            ensureMaterialized();
+            if (mStateMachine.restoreVisible(savedState.mAutoHideRemaining)) {
+                if (mAnimator != null) {
+                    mAnimator.jumpTo(1f, 0f);
+                }
+                super.setVisibility(View.VISIBLE);
+                applyButtonVisibility(mLeftButtonVisibility, mRightButtonVisibility);
+                super.setEnabled(true);
+                super.setFocusable(true);
+                super.setFocusableInTouchMode(true);
+
+                if (mStateChangeListener != null) {
+                    mStateChangeListener.onStateChanged(View.VISIBLE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the enabled state of this view. In this class it is overridden
+     * so that it has no effect. An OverlayMenu is always enabled when is
+     * visible, and disabled when it is hidden.
+     *
+     * @param enabled Not used at all. Just pass it whatever you want.
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        // Do nothing
+    }
+
+    /**
+     * Set the enabled state of this view. Here is overridden so that
+     * View.VISIBLE calls showMenu(), and any other value calls hideMenu().
+     *
+     * @param visibility Not used at all. Just pass it whatever you want.
+     */
+    @Override
+    public void setVisibility(int visibility) {
+        if (visibility == VISIBLE) {
+            showMenu();
+        }
+        else {
+            hideMenu();
+        }
+    }
+
+    /**
+     * Gets a value indicating if the Overlay Menu is currently animating.
+     *
+     * @return Returns true if the menu is animating.
+     */
+    public boolean isAnimating() {
+        return mStateMachine.isAnimating();
+    }
+
+    /**
+     * Gets a value indicating if the Overlay Menu is currently animating
+     * to disappear.
+     *
+     * @return Returns true if the menu is animating to hide itself.
+     */
+    public boolean isHiding() {
+        return mStateMachine.isHiding();
+    }
+
+    /**
+     * Gets a value indicating if the Overlay Menu is currently animating
+     * to appear.
+     *
+     * @return Returns true if the menu is animating to show itself.
+     */
+    public boolean isShowing() {
+        return mStateMachine.isShowing();
+    }
+
+    /**
+     * Gets a value indicating whether the menu is currently visible
+     * or not
+     *
+     * @return Returns true, if the menu is shown, otherwise false.
+     */
+    public boolean isMenuVisible() {
+        return mStateMachine.isVisible() && isShown();
+    }
+
+    /**
+     * Shows the Overlay Menu, if it's currently hidden,
+     * or resets the auto-hide timer if it's already visible.
+     */
+    public void showMenu() {
+        if (mStateMachine.getState() == MenuStateMachine.STATE_VISIBLE) {
+            mStateMachine.requestShow();
+            trace(TRACE_AUTO_HIDE_DELAYED, 0);
+            return;
+        }
+        ensureMaterialized();
+
+        final boolean reversing = mStateMachine.isHiding();
+        if (mStateMachine.requestShow()) {
+            trace(TRACE_SHOW_REQUESTED, reversing ? 1 : 0);
+            if (usesAnimator()) {
+                if (!reversing && sMetricsSink != null) {
+                    mShowRequestNanos = System.nanoTime();
+                }
+                animateTransition(true);
+                return;
+            }
+            if (reversing) {
+                startReversingTransition(true);
+                return;
+            }
+            if (sMetricsSink != null) {
+                mShowRequestNanos = System.nanoTime();
+            }
+            super.setVisibility(View.INVISIBLE);
+            applyButtonVisibility(View.INVISIBLE, View.INVISIBLE);
+            invalidateButtons();
+
+            if (mShowRunnable == null) {
+                mShowRunnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        // Workaround for Android 1.6 bug that wouldn't start the animation
+                        // unless "something" happened to our View (a focus/touch event, and
+                        // random stuff - even the HierarchyViewer connecting to the Activity!)
+                        if (!mShowPending) {
+                            // The menu has been hidden in the meantime
+                            return;
+                        }
+                        mShowPending = false;
+                        OverlayMenu.super.setVisibility(View.VISIBLE);
+
+                        ensureAnimations();
+                        mAnimMenuIn.setDuration(getTransitionDuration(true));
+                        mAnimMenuIn.reset();
+                        OverlayMenu.this.startAnimation(mAnimMenuIn);
+                    }
+                };
+            }
+
+            mShowPending = true;
+            if (!mPaused) {
+                post(mShowRunnable);
+            }
+        }
+        else {
+            trace(TRACE_AUTO_HIDE_DELAYED, 0);
+        }
+    }
+
+    /**
+     * Hides the Overlay Menu, if it's currently visible,
+     * or does nothing if it's already hidden.
+     */
+    public void hideMenu() {
+        hideMenu(HIDE_REASON_EXPLICIT);
+    }
+
+    /**
+     * Hides the Overlay Menu, if it's currently visible,
+     * or does nothing if it's already hidden.
+     *
+     * @param reason Either {@link #HIDE_REASON_EXPLICIT} or {@link #HIDE_REASON_AUTO}.
+     */
+    private void hideMenu(int reason) {
+        final boolean reversing = mStateMachine.isShowing();
+        if (mStateMachine.requestHide()) {
+            trace(TRACE_HIDE_REQUESTED, reason);
+            final MetricsSink sink = sMetricsSink;
+            if (sink != null) {
+                sink.onMenuHidden(this, reason);
+            }
+            if (usesAnimator()) {
+                animateTransition(false);
+                return;
+            }
+            if (mShowPending) {
+                // The appearing animation hasn't even started, there's nothing to reverse
+                mShowPending = false;
+                removeCallbacks(mShowRunnable);
+                mStateMachine.onHideFinished();
+                finishHiding();
+                return;
+            }
+
+            if (reversing) {
+                startReversingTransition(false);
+                return;
+            }
+            ensureAnimations();
+            mAnimMenuOut.setDuration(getTransitionDuration(false));
+            mAnimMenuOut.reset();
+            this.startAnimation(mAnimMenuOut);
+        }
+    }
+
+    /**
+     * Interrupts the running transition, and starts the opposite one from
+     * the menu current alpha and position. The new transition only covers
+     * the distance the interrupted one had travelled, and its duration is
+     * scaled down accordingly.
+     *
+     * @param showing True to start appearing, false to start hiding.
+     */
+    private void startReversingTransition(boolean showing) {
+        ensureAnimations();
+        final Animation target = showing ? mAnimMenuIn : mAnimMenuOut;
+        target.setDuration(getTransitionDuration(showing));
+
+        final Animation running = getAnimation();
+        if (running == null) {
+            target.reset();
+            startAnimation(target);
+            return;
+        }
+
+        if (mReversingAnimation == null) {
+            mReversingAnimation = new ReversingAnimation();
+            mTransformationFrom = new Transformation();
+            mTransformationTo = new Transformation();
+        }
+
+        // Must be computed before evaluating the running animation, which may start it
+        float travel = getTransitionProgress(running);
+        if (running == mReversingAnimation) {
+            travel *= mReversingAnimation.getTravel();
+        }
+
+        mTransformationFrom.clear();
+        evaluateAnimation(running, AnimationUtils.currentAnimationTimeMillis(), mTransformationFrom);
+
+        // The end state of the target transition
+        mTransformationTo.clear();
+        target.reset();
+        target.setStartTime(0);
+        evaluateAnimation(target, target.computeDurationHint(), mTransformationTo);
+        target.reset();
+
+        mReversingAnimation.reset();
+        mReversingAnimation.setStates(mTransformationFrom, mTransformationTo, travel);
+        mReversingAnimation.setDuration((long) (target.getDuration() * travel));
+        mReversingAnimation.setInterpolator(target.getInterpolator());
+        mReversingAnimation.setAnimationListener(showing ? mAnimMenuInListener : mAnimMenuOutListener);
+        startAnimation(mReversingAnimation);
+    }
+
+    /**
+     * Gets the transformation an animation applies at a given time, without
+     * notifying its listener.
+     *
+     * @param animation The animation.
+     * @param time      The animation time, in milliseconds.
+     * @param out       The transformation to fill.
+     */
+    private void evaluateAnimation(Animation animation, long time, Transformation out) {
+        if (!animation.isInitialized()) {
+            final View parent = (View) getParent();
+            animation.initialize(getWidth(), getHeight(),
+                                 parent != null ? parent.getWidth() : getWidth(),
+                                 parent != null ? parent.getHeight() : getHeight());
+        }
+        if (animation.getStartTime() == Animation.START_ON_FIRST_FRAME) {
+            animation.setStartTime(time);
+        }
+
+        animation.setAnimationListener(null);
+        animation.getTransformation(time, out);
+
+        if (animation == mAnimMenuIn) {
+            animation.setAnimationListener(mAnimMenuInListener);
+        }
+        else if (animation == mAnimMenuOut) {
+            animation.setAnimationListener(mAnimMenuOutListener);
+        }
+    }
+
+    /**
+     * Called by the auto-hiding mechanism after the preset delay
+     * to automatically hide the menu. Also implements the state
+     * machine timer on top of the shared {@link AutoHideScheduler}.
+     */
+    private class AutohideRunnable implements Runnable, MenuStateMachine.Timer {
+
+        @Override
+        public void arm(long delay) {
+            if (mAutoHideTimeout == null) {
+                mScheduler = AutoHideScheduler.getInstance();
+                mAutoHideTimeout = new AutoHideScheduler.Timeout(this);
+            }
+            mScheduler.arm(mAutoHideTimeout, delay);
+        }
+
+        @Override
+        public void cancel() {
+            if (mAutoHideTimeout != null) {
+                mScheduler.cancel(mAutoHideTimeout);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mStateMachine.onTimeout()) {
+                trace(TRACE_AUTO_HIDE, 0);
+                hideMenu(HIDE_REASON_AUTO);
+            }
+        }
+    }
+
+    /**
+     * Gets a reference to the left menu button.
+     *
+     * @return Returns a reference to the left menu button, or null
+     *         in compact rendering mode. The button is not shown while
+     *         an adapter is set.
+     */
+    public ImageButton getLeftButton() {
+        ensureMaterialized();
+        return mLeftButton;
+    }
+
+    /**
+     * Gets the current visibility status of right menu button
+     * when the OverlayMenu is displayed.
+     *
+     * @return Returns the visibility status of right menu button.
+     */
+    public int getRightButtonVisibility() {
+        return mRightButtonVisibility;
+    }
+
+    /**
+     * Gets the current visibility status of the left menu button
+     * when the OverlayMenu is displayed.
+     *
+     * @return Returns the visibility status of left menu button.
+     */
+    public int getLeftButtonVisibility() {
+        return mLeftButtonVisibility;
+    }
+
+    /**
+     * Sets the visibility status of the right menu button
+     * when the OverlayMenu is displayed
+     *
+     * @param newStatus The new status of the right menu button.
+     */
+    public void setRightButtonVisibility(int newStatus) {
+        trace(TRACE_RIGHT_BUTTON_VISIBILITY, newStatus);
+
+        mRightButtonVisibility = newStatus;
+        if (isMenuVisible()) {
+            applyButtonVisibility(mLeftButtonVisibility, mRightButtonVisibility);
+        }
+    }
+
+    /**
+     * Sets the visibility status of the left menu button
+     * when the OverlayMenu is displayed
+     *
+     * @param newStatus The new status of the left menu button.
+     */
+    public void setLeftButtonVisibility(int newStatus) {
+        trace(TRACE_LEFT_BUTTON_VISIBILITY, newStatus);
+
+        mLeftButtonVisibility = newStatus;
+        if (isMenuVisible()) {
+            applyButtonVisibility(mLeftButtonVisibility, mRightButtonVisibility);
+        }
+    }
+
+
+    /**
+     * Gets a reference to the right menu button.
+     *
+     * @return Returns a reference to the right menu button, or null
+     *         in compact rendering mode. The button is not shown while
+     *         an adapter is set.
+     */
+    public ImageButton getRightButton() {
+        ensureMaterialized();
+        return mRightButton;
+    }
+
+    /**
+     * Gets the adapter providing the menu actions, if any.
+     *
+     * @return Returns the adapter, or null if the menu shows the left
+     *         and right buttons.
+     */
+    public OverlayMenuAdapter getAdapter() {
+        return mAdapter;
+    }
+
+    /**
+     * Sets the adapter providing the menu actions. Its actions replace the
+     * left and right buttons, which come back when the adapter is removed.
+     * The action buttons are reused when the adapter changes or notifies
+     * that its actions have changed. Not supported in compact rendering mode.
+     *
+     * @param adapter The adapter, or null to show the left and right buttons.
+     */
+    public void setAdapter(OverlayMenuAdapter adapter) {
+        if (mCompactRendering) {
+            throw new IllegalStateException("Adapters are not supported in compact rendering mode.");
+        }
+        if (adapter == mAdapter) {
+            return;
+        }
+        ensureMaterialized();
+
+        if (mAdapterObserved) {
+            observeAdapter(false);
+        }
+
+        final OverlayMenuAdapter oldAdapter = mAdapter;
+        mAdapter = adapter;
+
+        if (adapter == null) {
+            while (!mActionButtons.isEmpty()) {
+                scrapActionButton(mActionButtons.remove(mActionButtons.size() - 1));
+            }
+            addView(mLeftButton);
+            addView(mRightButton);
+            return;
+        }
+
+        if (oldAdapter == null) {
+            removeView(mLeftButton);
+            removeView(mRightButton);
+        }
+        if (getWindowToken() != null) {
+            observeAdapter(true);
+        }
+        populateActions();
+    }
+
+    /**
+     * Starts or stops observing the adapter actions changes.
+     *
+     * @param observe true to start observing, false to stop.
+     */
+    private void observeAdapter(boolean observe) {
+        if (observe) {
+            if (mAdapterObserver == null) {
+                mAdapterObserver = new DataSetObserver() {
+
+                    @Override
+                    public void onChanged() {
+                        populateActions();
+                    }
+                };
+            }
+            mAdapter.registerDataSetObserver(mAdapterObserver);
+        }
+        else {
+            mAdapter.unregisterDataSetObserver(mAdapterObserver);
+        }
+        mAdapterObserved = observe;
+    }
+
+    /**
+     * Binds the action buttons to the adapter actions, reusing the existing
+     * buttons, then the scrapped ones, and only creating new buttons when
+     * there are none left.
+     */
+    private void populateActions() {
+        final int count = mAdapter.getCount();
+
+        while (mActionButtons.size() > count) {
+            scrapActionButton(mActionButtons.remove(mActionButtons.size() - 1));
+        }
+
+        final int leftCount = getLeftActionCount(count);
+        for (int i = 0; i < count; i++) {
+            final ImageButton button;
+            final boolean sideChanged;
+            if (i < mActionButtons.size()) {
+                button = mActionButtons.get(i);
+                sideChanged = (i < leftCount) != (i < mBoundLeftActionCount);
+            }
+            else {
+                button = obtainActionButton();
+                mActionButtons.add(button);
+                addView(button);
+                sideChanged = true;
+            }
+            bindActionButton(button, i, i < leftCount, sideChanged);
+        }
+        mBoundLeftActionCount = leftCount;
+
+        requestLayout();
+    }
+
+    /**
+     * Gets a button for an action, from the scrapped ones if possible.
+     *
+     * @return Returns an unbound, detached action button.
+     */
+    private ImageButton obtainActionButton() {
+        if (!mScrapButtons.isEmpty()) {
+            return mScrapButtons.remove(mScrapButtons.size() - 1);
+        }
+
+        if (mActionClickListener == null) {
+            mActionClickListener = new OnClickListener() {
+
+                @Override
+                public void onClick(View v) {
+                    final int position = mActionButtons.indexOf(v);
+                    if (position >= 0 && mAdapter != null) {
+                        mAdapter.onActionClick(OverlayMenu.this, position);
+                    }
+                }
+            };
+        }
+
+        ImageButton button = new ImageButton(getContext());
+        button.setAdjustViewBounds(true);
+        button.setOnClickListener(mActionClickListener);
+        button.setLayoutParams(new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+        return button;
+    }
+
+    /**
+     * Binds a button to an adapter action.
+     *
+     * @param button      The button.
+     * @param position    The action position.
+     * @param left        true if the button is on the left side, otherwise false.
+     * @param sideChanged true if the button was on the other side, or wasn't bound.
+     */
+    private void bindActionButton(ImageButton button, int position, boolean left, boolean sideChanged) {
+        if (sideChanged) {
+            final int backgroundResId = left ? R.drawable.menu_bg_left : R.drawable.menu_bg_right;
+            setButtonBackground(button, backgroundResId);
+            button.setScaleType(left ? ImageView.ScaleType.FIT_CENTER : ImageView.ScaleType.CENTER_INSIDE);
+        }
+
+        button.setImageDrawable(mAdapter.getIcon(position));
+        button.setContentDescription(mAdapter.getContentDescription(position));
+        button.setEnabled(mAdapter.isEnabled(position));
+    }
+
+    /**
+     * Detaches an action button, and keeps it for reuse if the scrap
+     * is not full yet.
+     *
+     * @param button The button.
+     */
+    private void scrapActionButton(ImageButton button) {
+        removeView(button);
+        button.setImageDrawable(null);
+
+        if (mScrapButtons.size() < MAX_SCRAP_BUTTONS) {
+            mScrapButtons.add(button);
+        }
+    }
+
+    /**
+     * Gets a value indicating whether the menu uses the compact rendering
+     * mode, where both buttons are drawn by a single lightweight view.
+     *
+     * @return Returns true if the menu uses the compact rendering mode,
+     *         otherwise false.
+     */
+    public boolean isCompactRendering() {
+        return mCompactRendering;
+    }
+
+    /**
+     * Sets the listener to call when the left menu button is clicked.
+     * Works in both rendering modes.
+     *
+     * @param l The click listener, or null.
+     */
+    public void setOnLeftButtonClickListener(OnClickListener l) {
+        mLeftClickListener = l;
+        if (mCompactBar != null) {
+            mCompactBar.setOnButtonClickListener(CompactMenuBar.LEFT, l);
+        }
+        else if (mLeftButton != null) {
+            mLeftButton.setOnClickListener(l);
+        }
+    }
+
+    /**
+     * Sets the listener to call when the right menu button is clicked.
+     * Works in both rendering modes.
+     *
+     * @param l The click listener, or null.
+     */
+    public void setOnRightButtonClickListener(OnClickListener l) {
+        mRightClickListener = l;
+        if (mCompactBar != null) {
+            mCompactBar.setOnButtonClickListener(CompactMenuBar.RIGHT, l);
+        }
+        else if (mRightButton != null) {
+            mRightButton.setOnClickListener(l);
+        }
+    }
+
+    /**
+     * Changes the left button icon, without changing the button size: unlike
+     * calling {@link ImageButton#setImageResource(int)} on {@link #getLeftButton()},
+     * this never triggers a layout pass. The new icon is centered, and scaled
+     * down if it's larger than the first one. Works in both rendering modes.
+     *
+     * @param resId     The icon resource ID.
+     * @param crossFade True to cross-fade from the current icon, false to swap immediately.
+     */
+    public void setLeftButtonIcon(int resId, boolean crossFade) {
+        if (!mMaterialized) {
+            mLeftIconResId = resId;
+            mLeftIcon = null;
+            return;
+        }
+        swapIcon(true, getIcon(resId, null), crossFade);
+    }
+
+    /**
+     * Changes the left button icon, without changing the button size: unlike
+     * calling {@link ImageButton#setImageDrawable(Drawable)} on {@link #getLeftButton()},
+     * this never triggers a layout pass. The new icon is centered, and scaled
+     * down if it's larger than the first one. Works in both rendering modes.
+     *
+     * @param icon      The icon, or null.
+     * @param crossFade True to cross-fade from the current icon, false to swap immediately.
+     */
+    public void setLeftButtonIcon(Drawable icon, boolean crossFade) {
+        if (!mMaterialized) {
+            mLeftIconResId = 0;
+            mLeftIcon = icon;
+            return;
+        }
+        swapIcon(true, icon, crossFade);
+    }
+
+    /**
+     * Changes the right button icon, without changing the button size: unlike
+     * calling {@link ImageButton#setImageResource(int)} on {@link #getRightButton()},
+     * this never triggers a layout pass. The new icon is centered, and scaled
+     * down if it's larger than the first one. Works in both rendering modes.
+     *
+     * @param resId     The icon resource ID.
+     * @param crossFade True to cross-fade from the current icon, false to swap immediately.
+     */
+    public void setRightButtonIcon(int resId, boolean crossFade) {
+        if (!mMaterialized) {
+            mRightIconResId = resId;
+            mRightIcon = null;
+            return;
+        }
+        swapIcon(false, getIcon(resId, null), crossFade);
+    }
+
+    /**
+     * Changes the right button icon, without changing the button size: unlike
+     * calling {@link ImageButton#setImageDrawable(Drawable)} on {@link #getRightButton()},
+     * this never triggers a layout pass. The new icon is centered, and scaled
+     * down if it's larger than the first one. Works in both rendering modes.
+     *
+     * @param icon      The icon, or null.
+     * @param crossFade True to cross-fade from the current icon, false to swap immediately.
+     */
+    public void setRightButtonIcon(Drawable icon, boolean crossFade) {
+        if (!mMaterialized) {
+            mRightIconResId = 0;
+            mRightIcon = icon;
+            return;
+        }
+        swapIcon(false, icon, crossFade);
+    }
+
+    /**
+     * Swaps the icon of a button through its {@link IconSwapDrawable}. The
+     * first swap installs it, which is the only one that may lay the menu out
+     * again; it's installed again if the icon has been replaced in the meantime.
+     *
+     * @param left      True for the left button, false for the right one.
+     * @param icon      The new icon, or null.
+     * @param crossFade True to cross-fade from the current icon.
+     */
+    private void swapIcon(boolean left, Drawable icon, boolean crossFade) {
+        IconSwapDrawable swap = left ? mLeftIconSwap : mRightIconSwap;
+
+        if (mCompactBar != null) {
+            final int button = left ? CompactMenuBar.LEFT : CompactMenuBar.RIGHT;
+            final Drawable current = mCompactBar.getIcon(button);
+            if (swap == null || current != swap) {
+                swap = createIconSwap(current);
+                mCompactBar.setIcon(button, swap);
+                // Only now, as the bar detaches the replaced icon
+                swap.setIcon(current, 0);
+            }
+        }
+        else {
+            final ImageButton button = left ? mLeftButton : mRightButton;
+            final Drawable current = button.getDrawable();
+            if (swap == null || current != swap) {
+                swap = createIconSwap(current);
+                button.setImageDrawable(swap);
+                // Only now, as the button detaches the replaced icon
+                swap.setIcon(current, 0);
+            }
+        }
+
+        if (left) {
+            mLeftIconSwap = swap;
+        }
+        else {
+            mRightIconSwap = swap;
+        }
+
+        final int duration = crossFade ? getResources().getInteger(android.R.integer.config_shortAnimTime) : 0;
+        swap.setIcon(icon, duration);
+    }
+
+    /**
+     * Creates the icon swap drawable of a button, as large as its current icon.
+     *
+     * @param current The button current icon, or null.
+     *
+     * @return Returns the new drawable, with no icon yet.
+     */
+    private static IconSwapDrawable createIconSwap(Drawable current) {
+        return current != null ? new IconSwapDrawable(current.getIntrinsicWidth(), current.getIntrinsicHeight()) :
+               new IconSwapDrawable(-1, -1);
+    }
+
+    /**
+     * Gets a value indicating wether the menu auto-hiding is currently active.
+     *
+     * @return Returns true if menu auto-hiding is currently active, otherwise
+     *         false.
+     */
+    public boolean getAutoHideEnabled() {
+        return mStateMachine.isAutoHideEnabled();
+    }
+
+    /**
+     * Sets wether the menu auto-hiding is active. Takes effect immediately.
+     *
+     * @param autoHide true to activate menu auto-hiding, otherwise false.
+     */
+    public void setAutoHideEnabled(boolean autoHide) {
+        mStateMachine.setAutoHideEnabled(autoHide);
+    }
+
+    /**
+     * Gets a value indicating whether the menu is rendered in a hardware
+     * layer while it's animating.
+     *
+     * @return Returns true if the hardware layer animation mode is enabled,
+     *         otherwise false.
+     */
+    public boolean getHardwareLayerAnimationEnabled() {
+        return mHardwareLayerAnimation;
+    }
+
+    /**
+     * Sets whether the menu is rendered in a hardware layer while it's animating.
+     * This reduces the GPU work needed to draw each frame of the appearing and
+     * hiding animations. Has no effect on devices that don't support hardware
+     * layers (before Android 3.0). Takes effect from the next animation.
+     *
+     * @param enabled true to enable the hardware layer animation mode, otherwise false.
+     */
+    public void setHardwareLayerAnimationEnabled(boolean enabled) {
+        mHardwareLayerAnimation = enabled;
+    }
+
+    /**
+     * Gets the process-wide tracer that records the menus diagnostic events
+     * (show and hide requests, transitions, auto-hiding, buttons visibility)
+     * in debug mode. Dump it to inspect them. The first argument of each
+     * event is the menu identity hash code.
+     *
+     * @return Returns the event tracer.
+     */
+    public static EventTracer getEventTracer() {
+        return sTracer;
+    }
+
+    /**
+     * Records a diagnostic event, in debug mode.
+     *
+     * @param event The event, one of the TRACE_* values.
+     * @param arg   The event argument.
+     */
+    private void trace(int event, int arg) {
+        if (DebugHelper.peekDebug()) {
+            sTracer.trace(event, System.identityHashCode(this), arg);
+        }
+    }
+
+    /**
+     * Gets the process-wide metrics sink, if any.
+     *
+     * @return The metrics sink, if any, or null.
+     */
+    public static MetricsSink getMetricsSink() {
+        return sMetricsSink;
+    }
+
+    /**
+     * Sets the process-wide metrics sink, that receives the timings of all the
+     * overlay menus. When no sink is set, no metrics are reported, and only
+     * the frame times the adaptive animation quality needs are sampled: see
+     * {@link #setAnimationQualityBounds(int, int)}.
+     *
+     * @param sink The metrics sink, or null.
+     */
+    public static void setMetricsSink(MetricsSink sink) {
+        sMetricsSink = sink;
+    }
+
+    /**
+     * Gets the registered OnMenuStateChange listener, if any.
+     *
+     * @return The OnMenuStateChange listener, if any, or null.
+     */
+    public OnMenuStateChangeListener getOnMenuStateChangeListener() {
+        return mStateChangeListener;
+    }
+
+    /**
+     * Sets the OnMenuStateChange listener.
+     *
+     * @param l The OnMenuStateChange listener, or null.
+     */
+    public void setOnMenuStateChangeListener(OnMenuStateChangeListener l) {
+        mStateChangeListener = l;
+    }
+
+    /**
+     * Adds a listener to be notified of the menu transitions start, progress
+     * and end. Does nothing if the listener is already registered.
+     *
+     * @param l The listener to add.
+     */
+    public void addOnMenuTransitionListener(OnMenuTransitionListener l) {
+        final OnMenuTransitionListener[] listeners = mTransitionListeners;
+        for (OnMenuTransitionListener listener : listeners) {
+            if (listener == l) {
+                return;
+            }
+        }
+
+        // Copy on write, so that dispatching never allocates
+        final OnMenuTransitionListener[] newListeners = new OnMenuTransitionListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+        newListeners[listeners.length] = l;
+        mTransitionListeners = newListeners;
+    }
+
+    /**
+     * Removes a listener added with {@link #addOnMenuTransitionListener(OnMenuTransitionListener)}.
+     * Does nothing if the listener is not registered.
+     *
+     * @param l The listener to remove.
+     */
+    public void removeOnMenuTransitionListener(OnMenuTransitionListener l) {
+        final OnMenuTransitionListener[] listeners = mTransitionListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == l) {
+                if (listeners.length == 1) {
+                    mTransitionListeners = NO_TRANSITION_LISTENERS;
+                    return;
+                }
+
+                final OnMenuTransitionListener[] newListeners = new OnMenuTransitionListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                mTransitionListeners = newListeners;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the menu appearing animation duration.
      *
      * @return Returns the menu appearing animation duration, in milliseconds.
      */
@@ -543,7 +2284,7 @@ public class OverlayMenu extends RelativeLayout {
      * @return Returns the menu hiding animation duration, in milliseconds.
      */
     public int getAutoHideDelay() {
-        return mAutoHideDelay;
+        return (int) mStateMachine.getAutoHideDelay();
     }
 
     /**
@@ -556,25 +2297,84 @@ public class OverlayMenu extends RelativeLayout {
             throw new IllegalArgumentException("The delay must be zero or a positive value.");
         }
 
-        mAutoHideDelay = delay;
+        mStateMachine.setAutoHideDelay(delay);
+    }
+
+    /**
+     * Gets the quality of the menu transitions. It's picked between the bounds
+     * set with {@link #setAnimationQualityBounds(int, int)}, and goes down when
+     * the transitions drop frames, and back up when they're smooth again. It's
+     * also no better than {@link #ANIMATION_QUALITY_SHORTENED} while the system
+     * is in battery saver mode, on Android 5.0+.
+     *
+     * @return Returns one of the {@code ANIMATION_QUALITY_*} constants.
+     */
+    public int getAnimationQuality() {
+        int quality = mQualityGovernor.getTier();
+        if (PowerSaveMonitor.isPowerSaveMode()) {
+            quality = Math.max(quality, Math.min(POWER_SAVE_ANIMATION_QUALITY, mQualityGovernor.getWorst()));
+        }
+        return quality;
+    }
+
+    /**
+     * Sets the range of qualities the menu transitions can use. Set the same
+     * value for both bounds to use a fixed quality. Takes effect on the next
+     * transition.
+     * <p/>
+     * While the quality is adaptive, which is the default, the time of every
+     * transition frame is sampled to measure the dropped frames, even when no
+     * {@link MetricsSink} is set. A fixed quality turns the sampling off.
+     *
+     * @param best  The best quality, one of the {@code ANIMATION_QUALITY_*}
+     *              constants. Default value: {@link #ANIMATION_QUALITY_FULL}.
+     * @param worst The worst quality, one of the {@code ANIMATION_QUALITY_*}
+     *              constants. Default value: {@link #ANIMATION_QUALITY_INSTANT}.
+     */
+    public void setAnimationQualityBounds(int best, int worst) {
+        if (best < ANIMATION_QUALITY_FULL || worst > ANIMATION_QUALITY_INSTANT || best > worst) {
+            throw new IllegalArgumentException("The animation quality bounds must be valid qualities, " +
+                                               "with the best one not lower than the worst one.");
+        }
+
+        mQualityGovernor.setBounds(best, worst);
     }
 
     /** {@inheritDoc} */
     @Override
     public boolean dispatchTouchEvent(MotionEvent event) {
         // Only handle Touch events when we're visible
-        if (mVisible) {
-
-            if (mAutoHide && mTouchSuspendsAutoHide && isEventOnButtons(event)) {
-
-                if (event.getAction() == MotionEvent.ACTION_DOWN) {
-                    // Suspend auto-hiding while we're focused
-                    mHandler.removeCallbacks(mAutoHideRunnable);
-                }
-                else if (event.getAction() == MotionEvent.ACTION_UP) {
-                    // Resume auto-hiding
-                    mHandler.removeCallbacks(mAutoHideRunnable);
-                    mHandler.postDelayed(mAutoHideRunnable, mAutoHideDelay);
+        if (mStateMachine.isVisible()) {
+
+            if (mStateMachine.isAutoHideEnabled() && mTouchSuspendsAutoHide) {
+                final int action = event.getAction();
+
+                switch (action & MotionEvent.ACTION_MASK) {
+                    case MotionEvent.ACTION_DOWN:
+                        if (isOnButtons(event.getX(), event.getY())) {
+                            // Suspend auto-hiding while we're focused
+                            mStateMachine.suspendAutoHide();
+                        }
+                        break;
+
+                    case MotionEvent.ACTION_POINTER_DOWN:
+                        // Only sent on Android 2.0+, where the pointer accessors are available
+                        final int index = (action & MotionEvent.ACTION_POINTER_INDEX_MASK) >>
+                                          MotionEvent.ACTION_POINTER_INDEX_SHIFT;
+                        if (isOnButtons(event.getX(index), event.getY(index))) {
+                            mStateMachine.suspendAutoHide();
+                        }
+                        break;
+
+                    case MotionEvent.ACTION_UP:
+                    case MotionEvent.ACTION_CANCEL:
+                        // Resume auto-hiding when the last pointer goes away
+                        mStateMachine.resumeAutoHide();
+                        break;
+
+                    default:
+                        // Moves and secondary pointers going up don't change auto-hiding
+                        break;
                 }
             }
             return super.dispatchTouchEvent(event);
@@ -582,6 +2382,173 @@ public class OverlayMenu extends RelativeLayout {
         return false;
     }
 
+    /**
+     * Handles the edge swipe gesture that reveals the menu: dragging up from the
+     * bottom edge of the wrapper layout pulls the menu up under the finger, and
+     * releasing it settles the menu shown or hidden, depending on the fling
+     * velocity and on how far it's been pulled. The wrapper layout must pass
+     * all its touch events here, e.g. from its
+     * {@link android.view.ViewGroup#onInterceptTouchEvent(MotionEvent)} and
+     * {@link View#onTouchEvent(MotionEvent)}.
+     * <p/>
+     * Before Android 4.1, or with custom animation resources, the menu doesn't
+     * follow the finger: the swipe just shows it.
+     *
+     * @param event The touch event, in the menu parent coordinates.
+     *
+     * @return Returns true if the event has been consumed by the gesture.
+     */
+    public boolean handleEdgeSwipe(MotionEvent event) {
+        switch (event.getAction() & MotionEvent.ACTION_MASK) {
+            case MotionEvent.ACTION_DOWN:
+                // The previous gesture may have ended without its UP or CANCEL reaching us
+                cancelSwipe();
+
+                final View parent = (View) getParent();
+                if (mPaused || parent == null || mStateMachine.getState() != MenuStateMachine.STATE_HIDDEN ||
+                    event.getY() < parent.getHeight() - mSwipeEdgeSize) {
+                    return false;
+                }
+
+                mSwipeState = SWIPE_CANDIDATE;
+                mSwipeDownY = event.getY();
+                mVelocityTracker = VelocityTracker.obtain();
+                mVelocityTracker.addMovement(event);
+                return false;
+
+            case MotionEvent.ACTION_MOVE:
+                if (mSwipeState == SWIPE_NONE) {
+                    return false;
+                }
+
+                mVelocityTracker.addMovement(event);
+                final float distance = mSwipeDownY - event.getY();
+                if (mSwipeState == SWIPE_CANDIDATE) {
+                    if (distance <= mTouchSlop) {
+                        return false;
+                    }
+                    if (!startSwipe()) {
+                        return true;
+                    }
+                }
+
+                final float offset = 1f - Math.max(0f, Math.min(1f, (distance - mTouchSlop) / mSwipeHeight));
+                mAnimator.jumpTo(Math.max(1f - offset, getHiddenAlpha()), offset);
+                dispatchTransitionFrame(1f - offset);
+                return true;
+
+            case MotionEvent.ACTION_UP:
+                if (mSwipeState == SWIPE_NONE) {
+                    return false;
+                }
+
+                final boolean dragged = mSwipeState == SWIPE_DRAGGING;
+                if (dragged) {
+                    mVelocityTracker.addMovement(event);
+                    mVelocityTracker.computeCurrentVelocity(1000, mMaxFlingVelocity);
+                    final float velocity = mVelocityTracker.getYVelocity();
+
+                    final boolean show;
+                    if (Math.abs(velocity) >= mMinFlingVelocity) {
+                        show = velocity < 0;
+                    }
+                    else {
+                        show = mSwipeDownY - event.getY() - mTouchSlop >= mSwipeHeight / 2f;
+                    }
+                    settleSwipe(show, velocity);
+                }
+                endSwipe();
+                return dragged;
+
+            case MotionEvent.ACTION_CANCEL:
+                final boolean cancelled = mSwipeState == SWIPE_DRAGGING;
+                cancelSwipe();
+                return cancelled;
+        }
+
+        return mSwipeState == SWIPE_DRAGGING;
+    }
+
+    /**
+     * Starts dragging the menu, once the finger has moved past the touch slop.
+     *
+     * @return Returns true if the menu follows the finger, false if it's just
+     *         been shown because it can't.
+     */
+    private boolean startSwipe() {
+        if (!usesAnimator()) {
+            endSwipe();
+            showMenu();
+            return false;
+        }
+
+        ensureMaterialized();
+        if (!mStateMachine.requestShow()) {
+            return false;
+        }
+        mSwipeState = SWIPE_DRAGGING;
+        trace(TRACE_SHOW_REQUESTED, 0);
+
+        mSwipeHeight = getHeight();
+        if (mSwipeHeight == 0) {
+            // Never laid out yet, measure it as its parent would
+            final View parent = (View) getParent();
+            measure(MeasureSpec.makeMeasureSpec(parent.getWidth(), MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(parent.getHeight(), MeasureSpec.AT_MOST));
+            mSwipeHeight = Math.max(1, getMeasuredHeight());
+        }
+
+        ensureAnimator();
+        // The finger moves the buttons by a fraction of the measured height
+        mAnimator.setTargetHeight(mSwipeHeight);
+        mAnimator.jumpTo(getHiddenAlpha(), 1f);
+        handleShowStart();
+        return true;
+    }
+
+    /**
+     * Stops tracking the swipe gesture, if any, and settles the menu hidden
+     * if it's being dragged.
+     */
+    private void cancelSwipe() {
+        if (mSwipeState == SWIPE_DRAGGING) {
+            settleSwipe(false, 0f);
+        }
+        endSwipe();
+    }
+
+    /** Stops tracking the swipe gesture, and recycles its velocity tracker. */
+    private void endSwipe() {
+        mSwipeState = SWIPE_NONE;
+        if (mVelocityTracker != null) {
+            mVelocityTracker.recycle();
+            mVelocityTracker = null;
+        }
+    }
+
+    /**
+     * Settles the dragged menu shown or hidden.
+     *
+     * @param show     True to settle the menu shown, false to settle it hidden.
+     * @param velocity The vertical velocity, in pixels per second. Negative upwards.
+     */
+    private void settleSwipe(boolean show, float velocity) {
+        // Keep moving at the fling speed, but never slower than a regular transition
+        long duration = getTransitionDuration(show);
+        if (Math.abs(velocity) >= mMinFlingVelocity) {
+            duration = Math.min(duration, (long) (mSwipeHeight * 1000f / Math.abs(velocity)));
+        }
+
+        if (show) {
+            mAnimator.animateTo(1f, 0f, duration, mInInterpolator);
+        }
+        else if (mStateMachine.requestHide()) {
+            trace(TRACE_HIDE_REQUESTED, HIDE_REASON_EXPLICIT);
+            handleHideStart();
+            mAnimator.animateTo(getHiddenAlpha(), 1f, duration, mOutInterpolator);
+        }
+    }
+
     /**
      * Checks if a touch event is performed on the root menu View
      * and not on the menu buttons. This also lets all ACTION_UP
@@ -597,10 +2564,162 @@ public class OverlayMenu extends RelativeLayout {
             return true;
         }
 
-        float x = event.getX(), y = event.getY();
+        return isOnButtons(event.getX(), event.getY());
+    }
+
+    /**
+     * Checks if a point is on one of the menu buttons, using the hit
+     * rectangles computed in {@link #onLayout(boolean, int, int, int, int)}.
+     *
+     * @param x The point X coordinate, in this view coordinates.
+     * @param y The point Y coordinate, in this view coordinates.
+     *
+     * @return Returns true if the point is on one of the menu buttons,
+     *         including their touch slop.
+     */
+    private boolean isOnButtons(float x, float y) {
+        final int ix = (int) x, iy = (int) y;
+        for (int i = 0; i < mHitRectCount; i++) {
+            if (mHitRects[i].contains(ix, iy)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The state of an overlay menu, saved across Activity recreations. */
+    static class SavedState extends BaseSavedState {
+
+        boolean mVisible;
+        int mLeftButtonVisibility;
+        int mRightButtonVisibility;
+        long mAutoHideRemaining;
+
+        SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        private SavedState(Parcel in) {
+            super(in);
+            mVisible = in.readInt() != 0;
+            mLeftButtonVisibility = in.readInt();
+            mRightButtonVisibility = in.readInt();
+            mAutoHideRemaining = in.readLong();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeInt(mVisible ? 1 : 0);
+            out.writeInt(mLeftButtonVisibility);
+            out.writeInt(mRightButtonVisibility);
+            out.writeLong(mAutoHideRemaining);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
+    }
+
+    /**
+     * Receives the overlay menus performance metrics. All the methods are
+     * called on the UI thread, except {@link #onMenuConstructed(OverlayMenu, long, long)}
+     * that is called on the thread constructing the menu; they should return quickly.
+     */
+    public interface MetricsSink {
+
+        /**
+         * Called when a menu has been constructed.
+         *
+         * @param menu       The menu.
+         * @param buildNanos The time spent building the buttons, in nanoseconds. Zero in
+         *                   lazy initialization mode, where the buttons are built later.
+         * @param totalNanos The total time spent initializing the menu, in nanoseconds.
+         */
+        void onMenuConstructed(OverlayMenu menu, long buildNanos, long totalNanos);
+
+        /**
+         * Called when a menu draws its first frame after {@link OverlayMenu#showMenu()}.
+         *
+         * @param menu  The menu.
+         * @param nanos The time from the {@link OverlayMenu#showMenu()} call to the first
+         *              drawn frame, in nanoseconds.
+         */
+        void onShowLatency(OverlayMenu menu, long nanos);
+
+        /**
+         * Called for each frame of the appearing and hiding animations.
+         *
+         * @param menu       The menu.
+         * @param showing    True for the appearing animation, false for the hiding one.
+         * @param frameNanos The time since the previous frame, in nanoseconds.
+         */
+        void onAnimationFrame(OverlayMenu menu, boolean showing, long frameNanos);
+
+        /**
+         * Called when the appearing or hiding animation ends.
+         *
+         * @param menu          The menu.
+         * @param showing       True for the appearing animation, false for the hiding one.
+         * @param totalNanos    The animation total duration, in nanoseconds.
+         * @param frames        The number of frames drawn.
+         * @param droppedFrames The number of frames dropped, because the drawn ones came late.
+         */
+        void onAnimationFinished(OverlayMenu menu, boolean showing, long totalNanos, int frames,
+                                 int droppedFrames);
+
+        /**
+         * Called when a menu starts hiding.
+         *
+         * @param menu   The menu.
+         * @param reason Either {@link OverlayMenu#HIDE_REASON_EXPLICIT} or
+         *               {@link OverlayMenu#HIDE_REASON_AUTO}.
+         */
+        void onMenuHidden(OverlayMenu menu, int reason);
+    }
+
+    /**
+     * Listener for the menu transitions, to move other content in step with
+     * the menu. All the methods are called on the UI thread, and are driven
+     * by the same frames that draw the menu animations.
+     */
+    public interface OnMenuTransitionListener {
+
+        /**
+         * Called when the menu starts appearing or hiding.
+         *
+         * @param menu    The menu.
+         * @param showing True if the menu is appearing, false if it's hiding.
+         */
+        void onTransitionStart(OverlayMenu menu, boolean showing);
+
+        /**
+         * Called before each frame of a transition is drawn.
+         *
+         * @param menu     The menu.
+         * @param showing  True if the menu is appearing, false if it's hiding.
+         * @param progress The fraction of the transition duration elapsed,
+         *                 from 0 to 1, before any interpolation.
+         */
+        void onTransitionProgress(OverlayMenu menu, boolean showing, float progress);
 
-        return (x < mLeftButton.getRight() && y > mLeftButton.getTop()) ||
-               (x > mRightButton.getLeft() && y > mRightButton.getTop());
+        /**
+         * Called when a transition ends, or is interrupted by the opposite one.
+         *
+         * @param menu    The menu.
+         * @param showing True if the menu was appearing, false if it was hiding.
+         */
+        void onTransitionEnd(OverlayMenu menu, boolean showing);
     }
 
     /** Listener for menu visibility state changes. */
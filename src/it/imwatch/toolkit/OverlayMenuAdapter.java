@@ -0,0 +1,91 @@
+package it.imwatch.toolkit;
+
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Provides the actions shown by an {@link OverlayMenu}, when the two fixed
+ * buttons are not enough. Set it with {@link OverlayMenu#setAdapter(OverlayMenuAdapter)}.
+ * <p/>
+ * The first half of the actions are shown in the bottom-left corner of
+ * the screen, the other half in the bottom-right corner. The menu reuses
+ * its button views when the actions change: call {@link #notifyDataSetChanged()}
+ * to have them rebound to the new actions.
+ */
+public abstract class OverlayMenuAdapter {
+
+    private final DataSetObservable mDataSetObservable = new DataSetObservable();
+
+    /**
+     * Gets the number of actions.
+     *
+     * @return Returns the number of actions.
+     */
+    public abstract int getCount();
+
+    /**
+     * Gets the icon of an action.
+     *
+     * @param position The action position.
+     *
+     * @return Returns the action icon, or null.
+     */
+    public abstract Drawable getIcon(int position);
+
+    /**
+     * Called when an action is clicked.
+     *
+     * @param menu     The menu the action belongs to.
+     * @param position The action position.
+     */
+    public abstract void onActionClick(OverlayMenu menu, int position);
+
+    /**
+     * Gets the content description of an action, for accessibility.
+     *
+     * @param position The action position.
+     *
+     * @return Returns the action content description, or null.
+     */
+    public CharSequence getContentDescription(int position) {
+        return null;
+    }
+
+    /**
+     * Gets a value indicating whether an action is enabled.
+     *
+     * @param position The action position.
+     *
+     * @return Returns true if the action can be clicked, otherwise false.
+     */
+    public boolean isEnabled(int position) {
+        return true;
+    }
+
+    /**
+     * Notifies the menus using this adapter that the actions have changed.
+     */
+    public void notifyDataSetChanged() {
+        mDataSetObservable.notifyChanged();
+    }
+
+    /**
+     * Registers an observer that is called when the actions change.
+     *
+     * @param observer The observer.
+     */
+    public void registerDataSetObserver(DataSetObserver observer) {
+        mDataSetObservable.registerObserver(observer);
+    }
+
+    /**
+     * Unregisters an observer previously registered with
+     * {@link #registerDataSetObserver(DataSetObserver)}.
+     *
+     * @param observer The observer.
+     */
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        mDataSetObservable.unregisterObserver(observer);
+    }
+}
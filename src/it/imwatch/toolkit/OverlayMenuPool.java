@@ -0,0 +1,208 @@
+package it.imwatch.toolkit;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.view.ViewGroup;
+import android.widget.RelativeLayout;
+
+import java.util.ArrayList;
+
+/**
+ * Builds overlay menus ahead of time, so that screens can get a ready
+ * menu instead of building one while they're being inflated.
+ * <p/>
+ * {@link #prewarm()} first loads the menus animations and drawables in the
+ * process-wide caches on a background thread, then builds the menus on the
+ * main thread, one at a time, whenever the main looper is idle. Views can
+ * only be built on the main thread, but the resources decoding and parsing,
+ * which is the bulk of the cost, happens off it.
+ * <p/>
+ * The menus are built with the pool context and theme, and without layout
+ * attributes: configure them in code. A pool holds on to its context, so
+ * it must be owned by the Activity it's created with, and not kept in
+ * static fields. This class must only be used from the main thread.
+ */
+public final class OverlayMenuPool {
+
+    private final Context mContext;
+    private final int mSize;
+    private final ArrayList<OverlayMenu> mMenus;
+    private final Handler mHandler;
+    private MessageQueue.IdleHandler mIdleHandler;
+    private boolean mWarming;
+
+    /**
+     * Initializes a pool.
+     *
+     * @param context The context to build the menus into. Its theme must
+     *                be a child of Theme.ImWatch.
+     * @param size    The number of menus to keep ready.
+     */
+    public OverlayMenuPool(Context context, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The pool size must be a positive value.");
+        }
+
+        mContext = context;
+        mSize = size;
+        mMenus = new ArrayList<OverlayMenu>(size);
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Starts filling the pool in the background. Does nothing if the pool
+     * is already full, or being filled.
+     */
+    public void prewarm() {
+        checkMainThread();
+        if (mWarming || mMenus.size() >= mSize) {
+            return;
+        }
+        mWarming = true;
+
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                preloadResources();
+
+                mHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        scheduleBuilds();
+                    }
+                });
+            }
+        }, "OverlayMenuPool");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets a menu from the pool, or builds a new one if the pool is empty.
+     *
+     * @return Returns a menu, not attached to any parent.
+     */
+    public OverlayMenu obtain() {
+        checkMainThread();
+
+        final int count = mMenus.size();
+        if (count > 0) {
+            return mMenus.remove(count - 1);
+        }
+        return new OverlayMenu(mContext);
+    }
+
+    /**
+     * Gets a menu from the pool, and adds it to a wrapper layout, aligned
+     * to its bottom, left and right edges, as when it's declared in XML.
+     *
+     * @param wrapper The wrapper layout, containing the actual screen layout.
+     *
+     * @return Returns the attached menu.
+     */
+    public OverlayMenu attachTo(RelativeLayout wrapper) {
+        final OverlayMenu menu = obtain();
+
+        final RelativeLayout.LayoutParams params =
+                new RelativeLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+                                                ViewGroup.LayoutParams.WRAP_CONTENT);
+        params.addRule(RelativeLayout.ALIGN_PARENT_LEFT);
+        params.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM);
+        params.addRule(RelativeLayout.ALIGN_PARENT_RIGHT);
+        wrapper.addView(menu, params);
+
+        return menu;
+    }
+
+    /**
+     * Gets the number of menus ready in the pool.
+     *
+     * @return Returns the number of ready menus.
+     */
+    public int getReadyCount() {
+        return mMenus.size();
+    }
+
+    /** Drops all the ready menus, and stops filling the pool. */
+    public void clear() {
+        checkMainThread();
+
+        mMenus.clear();
+        if (mIdleHandler != null) {
+            Looper.myQueue().removeIdleHandler(mIdleHandler);
+            mIdleHandler = null;
+        }
+        mWarming = false;
+    }
+
+    /**
+     * Loads the default menu resources in the process-wide caches. Runs on
+     * a background thread.
+     */
+    private void preloadResources() {
+        final TypedArray array = mContext.obtainStyledAttributes(R.styleable.OverlayMenu);
+        final int leftIconResId = array.getResourceId(R.styleable.OverlayMenu_leftButtonIcon, 0);
+        final int rightIconResId = array.getResourceId(R.styleable.OverlayMenu_rightButtonIcon, 0);
+        final int inAnimResId = array.getResourceId(R.styleable.OverlayMenu_menuInAnimation, R.anim.menu_in);
+        final int outAnimResId = array.getResourceId(R.styleable.OverlayMenu_menuOutAnimation, R.anim.menu_out);
+        array.recycle();
+
+        // On Android 4.1+ the default transitions are run by the built-in
+        // animator, and the view animations would never be used
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN ||
+            inAnimResId != R.anim.menu_in || outAnimResId != R.anim.menu_out) {
+            MenuAnimationCache.preload(mContext, inAnimResId, mSize);
+            MenuAnimationCache.preload(mContext, outAnimResId, mSize);
+        }
+        MenuDrawableCache.preload(mContext, R.drawable.menu_bg_left);
+        MenuDrawableCache.preload(mContext, R.drawable.menu_bg_right);
+
+        if (leftIconResId != 0) {
+            MenuDrawableCache.preload(mContext, leftIconResId);
+        }
+        if (rightIconResId != 0) {
+            MenuDrawableCache.preload(mContext, rightIconResId);
+        }
+    }
+
+    /** Builds the missing menus, one each time the main looper is idle. */
+    private void scheduleBuilds() {
+        if (!mWarming || mIdleHandler != null) {
+            // Cleared in the meantime, or already building
+            return;
+        }
+
+        mIdleHandler = new MessageQueue.IdleHandler() {
+
+            @Override
+            public boolean queueIdle() {
+                if (mMenus.size() < mSize) {
+                    mMenus.add(new OverlayMenu(mContext));
+                }
+
+                if (mMenus.size() < mSize) {
+                    return true;
+                }
+                mIdleHandler = null;
+                mWarming = false;
+                return false;
+            }
+        };
+        Looper.myQueue().addIdleHandler(mIdleHandler);
+    }
+
+    /** Makes sure the caller is on the main thread. */
+    private static void checkMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("The overlay menu pool must only be used from the main thread.");
+        }
+    }
+}
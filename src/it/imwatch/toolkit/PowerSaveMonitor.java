@@ -0,0 +1,69 @@
+package it.imwatch.toolkit;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * Process-wide cache of the battery saver mode, for the overlay menus
+ * transitions.
+ * <p/>
+ * The mode is queried once, when the first menu is created, and then
+ * followed by a single receiver registered on the application context for
+ * the lifetime of the process. The menus only ever read a static field: no
+ * binder call and no receiver registration happens when they're attached
+ * or detached, as list rows and pager pages constantly are.
+ * <p/>
+ * The battery saver mode only exists on Android 5.0+; on older versions it's
+ * never on. This class must only be used from the main thread.
+ */
+final class PowerSaveMonitor {
+
+    private static boolean sStarted;
+    private static boolean sPowerSaveMode;
+
+    private PowerSaveMonitor() {
+    }
+
+    /**
+     * Starts following the battery saver mode, if that hasn't been done yet.
+     * Only the first call has any effect.
+     *
+     * @param context Any context of the application.
+     */
+    static void start(Context context) {
+        if (sStarted || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        sStarted = true;
+
+        // Some contexts, e.g. the layout editor and test ones, have no application context
+        final Context appContext = context.getApplicationContext();
+        final Context receiverContext = appContext != null ? appContext : context;
+        final PowerManager powerManager = (PowerManager) receiverContext.getSystemService(Context.POWER_SERVICE);
+        if (powerManager == null) {
+            return;
+        }
+
+        receiverContext.registerReceiver(new BroadcastReceiver() {
+
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                sPowerSaveMode = powerManager.isPowerSaveMode();
+            }
+        }, new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED));
+        sPowerSaveMode = powerManager.isPowerSaveMode();
+    }
+
+    /**
+     * Gets a value indicating whether the battery saver mode is on.
+     *
+     * @return Returns true if the battery saver mode is on.
+     */
+    static boolean isPowerSaveMode() {
+        return sPowerSaveMode;
+    }
+}
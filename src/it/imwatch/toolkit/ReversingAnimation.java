@@ -0,0 +1,65 @@
+package it.imwatch.toolkit;
+
+import android.view.animation.Animation;
+import android.view.animation.Transformation;
+
+/**
+ * An animation that takes the overlay menu from wherever an interrupted
+ * transition left it to the end state of the opposite transition, so that
+ * a reversed transition continues smoothly instead of jumping back to the
+ * start.
+ * <p/>
+ * The alpha and the transformation matrix values are interpolated linearly
+ * between the two states, which is exact for the translations and scales
+ * the menu animations are made of. Each menu reuses a single instance.
+ */
+final class ReversingAnimation extends Animation {
+
+    private final float[] mFromValues = new float[9];
+    private final float[] mToValues = new float[9];
+    private final float[] mValues = new float[9];
+    private float mFromAlpha, mToAlpha;
+    private float mTravel = 1f;
+
+    /**
+     * Sets the states to animate between. The transformations are copied.
+     *
+     * @param from   The state the menu is in now.
+     * @param to     The end state of the opposite transition.
+     * @param travel The fraction of a whole transition this animation
+     *               covers, from 0 to 1.
+     */
+    void setStates(Transformation from, Transformation to, float travel) {
+        mFromAlpha = from.getAlpha();
+        mToAlpha = to.getAlpha();
+        from.getMatrix().getValues(mFromValues);
+        to.getMatrix().getValues(mToValues);
+        mTravel = travel;
+    }
+
+    /**
+     * Gets the fraction of a whole transition this animation covers.
+     *
+     * @return Returns the covered fraction, from 0 to 1.
+     */
+    float getTravel() {
+        return mTravel;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void applyTransformation(float interpolatedTime, Transformation t) {
+        t.setAlpha(mFromAlpha + (mToAlpha - mFromAlpha) * interpolatedTime);
+
+        for (int i = 0; i < mValues.length; i++) {
+            mValues[i] = mFromValues[i] + (mToValues[i] - mFromValues[i]) * interpolatedTime;
+        }
+        t.getMatrix().setValues(mValues);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean willChangeTransformationMatrix() {
+        return true;
+    }
+}
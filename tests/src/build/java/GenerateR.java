@@ -0,0 +1,266 @@
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates the R and BuildConfig classes of the library from its resources,
+ * for the JVM tests, as the Android build tools aren't needed to run them.
+ * <p/>
+ * The identifiers are assigned the way aapt does: one type per resource kind,
+ * entries numbered in declaration order, styleables listing the framework
+ * attributes first. The resources values are then read from the resource
+ * directory by Robolectric, in legacy resources mode.
+ * <p/>
+ * Usage: {@code java GenerateR.java <package> <res dir> <output dir>}
+ */
+public final class GenerateR {
+
+    /** Matches the ids declared inline in layouts and menus. */
+    private static final Pattern NEW_ID = Pattern.compile("@\\+id/([A-Za-z0-9_.]+)");
+
+    /** The value types that are declared as their own tag name. */
+    private static final Set<String> VALUE_TAGS = new LinkedHashSet<String>(Arrays.asList(
+            "bool", "color", "dimen", "fraction", "integer", "string", "plurals", "array",
+            "string-array", "integer-array"));
+
+    private final Map<String, Set<String>> mEntries = new TreeMap<String, Set<String>>();
+    private final Map<String, List<String>> mStyleables = new TreeMap<String, List<String>>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            throw new IllegalArgumentException("Usage: java GenerateR.java <package> <res dir> <output dir>");
+        }
+
+        final GenerateR generator = new GenerateR();
+        generator.scan(new File(args[1]));
+        generator.write(args[0], new File(args[2]));
+    }
+
+    /**
+     * Collects the resources declared in a resource directory.
+     *
+     * @param resDir The resource directory.
+     */
+    private void scan(File resDir) throws Exception {
+        final File[] dirs = resDir.listFiles();
+        if (dirs == null) {
+            throw new IOException("The resource directory " + resDir + " doesn't exist.");
+        }
+        Arrays.sort(dirs);
+
+        for (File dir : dirs) {
+            final File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            Arrays.sort(files);
+
+            final String type = dir.getName().split("-")[0];
+            for (File file : files) {
+                if (type.equals("values")) {
+                    scanValues(file);
+                    continue;
+                }
+
+                final String name = file.getName();
+                add(type, name.substring(0, name.indexOf('.') < 0 ? name.length() : name.indexOf('.')));
+                if (name.endsWith(".xml")) {
+                    final Matcher matcher = NEW_ID.matcher(new String(Files.readAllBytes(file.toPath()),
+                                                                      StandardCharsets.UTF_8));
+                    while (matcher.find()) {
+                        add("id", matcher.group(1));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the resources declared in a values file.
+     *
+     * @param file The values file.
+     */
+    private void scanValues(File file) throws Exception {
+        final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+        for (Element element : children(document.getDocumentElement())) {
+            final String tag = element.getTagName();
+            final String name = element.getAttribute("name");
+
+            if (tag.equals("declare-styleable")) {
+                final List<String> attrs = new ArrayList<String>();
+                for (Element attr : children(element)) {
+                    if (attr.getTagName().equals("attr")) {
+                        final String attrName = attr.getAttribute("name");
+                        attrs.add(attrName);
+                        if (!attrName.startsWith("android:")) {
+                            add("attr", attrName);
+                        }
+                    }
+                }
+                mStyleables.put(name, attrs);
+            }
+            else if (tag.equals("attr")) {
+                add("attr", name);
+            }
+            else if (tag.equals("style")) {
+                add("style", name);
+            }
+            else if (tag.equals("item")) {
+                add(element.getAttribute("type"), name);
+            }
+            else if (VALUE_TAGS.contains(tag)) {
+                add(tag.endsWith("array") ? "array" : tag, name);
+            }
+        }
+    }
+
+    /**
+     * Writes the R and BuildConfig classes.
+     *
+     * @param packageName The package of the classes.
+     * @param outDir      The root of the generated sources.
+     */
+    private void write(String packageName, File outDir) throws IOException {
+        final File dir = new File(outDir, packageName.replace('.', File.separatorChar));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create the directory " + dir + ".");
+        }
+
+        final Map<String, Integer> attrIds = new LinkedHashMap<String, Integer>();
+        PrintWriter out = new PrintWriter(new File(dir, "R.java"), "UTF-8");
+        try {
+            out.println("/* Generated by GenerateR from the library resources. Do not modify. */");
+            out.println("package " + packageName + ";");
+            out.println();
+            out.println("public final class R {");
+
+            int typeId = 1;
+            for (Map.Entry<String, Set<String>> entry : mEntries.entrySet()) {
+                out.println("    public static final class " + entry.getKey() + " {");
+                int entryId = 0;
+                for (String name : entry.getValue()) {
+                    final int id = 0x7f000000 | typeId << 16 | entryId++;
+                    if (entry.getKey().equals("attr")) {
+                        attrIds.put(name, id);
+                    }
+                    out.println("        public static int " + fieldName(name) + " = 0x" + Integer.toHexString(id) + ";");
+                }
+                out.println("    }");
+                typeId++;
+            }
+
+            out.println("    public static final class styleable {");
+            for (Map.Entry<String, List<String>> entry : mStyleables.entrySet()) {
+                // The framework attributes have the lowest ids, so they come first
+                final List<String> attrs = new ArrayList<String>();
+                for (String attr : entry.getValue()) {
+                    if (attr.startsWith("android:")) {
+                        attrs.add(attr);
+                    }
+                }
+                for (String attr : entry.getValue()) {
+                    if (!attr.startsWith("android:")) {
+                        attrs.add(attr);
+                    }
+                }
+
+                final StringBuilder ids = new StringBuilder();
+                for (String attr : attrs) {
+                    if (ids.length() > 0) {
+                        ids.append(", ");
+                    }
+                    ids.append(attr.startsWith("android:")
+                               ? "android.R.attr." + attr.substring("android:".length())
+                               : "0x" + Integer.toHexString(attrIds.get(attr)));
+                }
+
+                final String styleable = fieldName(entry.getKey());
+                out.println("        public static int[] " + styleable + " = { " + ids + " };");
+                for (int i = 0; i < attrs.size(); i++) {
+                    out.println("        public static int " + styleable + "_" + fieldName(attrs.get(i).replace(':', '_')) +
+                                " = " + i + ";");
+                }
+            }
+            out.println("    }");
+            out.println("}");
+        }
+        finally {
+            out.close();
+        }
+
+        out = new PrintWriter(new File(dir, "BuildConfig.java"), "UTF-8");
+        try {
+            out.println("/* Generated by GenerateR. Do not modify. */");
+            out.println("package " + packageName + ";");
+            out.println();
+            out.println("public final class BuildConfig {");
+            out.println("    public static final boolean DEBUG = true;");
+            out.println("}");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Records a resource.
+     *
+     * @param type The resource type.
+     * @param name The resource name.
+     */
+    private void add(String type, String name) {
+        Set<String> names = mEntries.get(type);
+        if (names == null) {
+            names = new LinkedHashSet<String>();
+            mEntries.put(type, names);
+        }
+        names.add(name);
+    }
+
+    /**
+     * Gets the R field name of a resource.
+     *
+     * @param name The resource name.
+     *
+     * @return Returns the name, with dots replaced by underscores.
+     */
+    private static String fieldName(String name) {
+        return name.replace('.', '_');
+    }
+
+    /**
+     * Gets the child elements of an element.
+     *
+     * @param parent The parent element.
+     *
+     * @return Returns the child elements, in document order.
+     */
+    private static List<Element> children(Element parent) {
+        final List<Element> children = new ArrayList<Element>();
+        final NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                children.add((Element) nodes.item(i));
+            }
+        }
+        return children;
+    }
+}
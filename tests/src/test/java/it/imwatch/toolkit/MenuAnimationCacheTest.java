@@ -0,0 +1,73 @@
+package it.imwatch.toolkit;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.view.animation.Animation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that the menu animations are reused once given back, and that the
+ * instances loaded before a configuration change are never handed out again.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MenuAnimationCacheTest {
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        MenuAnimationCache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        MenuAnimationCache.clear();
+    }
+
+    @Test
+    public void recycledAnimationsAreReused() {
+        final Animation animation = MenuAnimationCache.obtain(mContext, R.anim.menu_in);
+        MenuAnimationCache.recycle(R.anim.menu_in, animation);
+
+        assertSame(animation, MenuAnimationCache.obtain(mContext, R.anim.menu_in));
+    }
+
+    @Test
+    public void animationsRecycledAfterAConfigurationChangeAreDropped() {
+        final Animation stale = MenuAnimationCache.obtain(mContext, R.anim.menu_in);
+
+        // The new configuration is seen by the cache on the next obtain, before
+        // or after the stale instance is given back
+        final Animation current = MenuAnimationCache.obtain(rotate(), R.anim.menu_in);
+        MenuAnimationCache.recycle(R.anim.menu_in, stale);
+        MenuAnimationCache.recycle(R.anim.menu_in, current);
+
+        assertSame(current, MenuAnimationCache.obtain(mContext, R.anim.menu_in));
+        assertNotSame(stale, MenuAnimationCache.obtain(mContext, R.anim.menu_in));
+    }
+
+    /**
+     * Switches the resources configuration to the other orientation.
+     *
+     * @return Returns the context, with the new configuration.
+     */
+    private Context rotate() {
+        final Resources resources = mContext.getResources();
+        final Configuration configuration = new Configuration(resources.getConfiguration());
+        configuration.orientation = configuration.orientation == Configuration.ORIENTATION_LANDSCAPE
+                                    ? Configuration.ORIENTATION_PORTRAIT
+                                    : Configuration.ORIENTATION_LANDSCAPE;
+        resources.updateConfiguration(configuration, resources.getDisplayMetrics());
+        return mContext;
+    }
+}
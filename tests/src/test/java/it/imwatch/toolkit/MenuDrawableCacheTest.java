@@ -0,0 +1,77 @@
+package it.imwatch.toolkit;
+
+import android.content.Context;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the menu drawables are shared, kept within the cache budget,
+ * and that the bitmaps from a denser bucket than the display are subsampled
+ * by the right factor. Robolectric doesn't report the resources density nor
+ * subsample the bitmaps it decodes, so the subsampling is checked on the
+ * sample size computation.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(qualifiers = "mdpi")
+public class MenuDrawableCacheTest {
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        MenuDrawableCache.clear();
+        MenuDrawableCache.setMaxSize(512 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        MenuDrawableCache.clear();
+        MenuDrawableCache.setMaxSize(512 * 1024);
+    }
+
+    @Test
+    public void obtainedDrawablesShareTheirBitmap() {
+        final Drawable first = MenuDrawableCache.obtain(mContext, R.drawable.test_icon);
+        final Drawable second = MenuDrawableCache.obtain(mContext, R.drawable.test_icon);
+
+        assertNotSame(first, second);
+        assertSame(((BitmapDrawable) first).getBitmap(), ((BitmapDrawable) second).getBitmap());
+    }
+
+    @Test
+    public void denserBitmapsAreSubsampled() {
+        assertEquals(2, MenuDrawableCache.getSampleSize(480, 160));
+        assertEquals(4, MenuDrawableCache.getSampleSize(640, 160));
+        assertEquals(2, MenuDrawableCache.getSampleSize(480, 240));
+        assertEquals(1, MenuDrawableCache.getSampleSize(320, 240));
+        assertEquals(1, MenuDrawableCache.getSampleSize(240, 240));
+        assertEquals(1, MenuDrawableCache.getSampleSize(160, 240));
+    }
+
+    @Test
+    public void cacheStaysWithinBudget() {
+        MenuDrawableCache.obtain(mContext, R.drawable.test_icon);
+        final int iconSize = MenuDrawableCache.getSize();
+        assertTrue(iconSize > 0);
+
+        MenuDrawableCache.setMaxSize(iconSize);
+        MenuDrawableCache.obtain(mContext, R.drawable.menu_bg_left);
+        assertTrue(MenuDrawableCache.getSize() <= iconSize);
+
+        MenuDrawableCache.setMaxSize(0);
+        assertEquals(0, MenuDrawableCache.getSize());
+    }
+}
@@ -0,0 +1,701 @@
+package it.imwatch.toolkit;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.InputDevice;
+import android.view.LayoutInflater;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.animation.Animation;
+import android.widget.ImageButton;
+import android.widget.RelativeLayout;
+import it.imwatch.common.util.DebugHelper;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the allocation and time budgets of the overlay menu hot paths:
+ * showing a menu, showing an already visible one, hiding it, the auto-hide
+ * expiry, the touch handling, and the debug status checks and tracing they
+ * all go through. The menu is inflated from a wrapper layout, like in an app.
+ * <p/>
+ * The allocations are counted in bytes by the JVM for the test thread, and
+ * must be zero on the paths that run on every touch or every show request,
+ * once they've been warmed up. The times are averaged over many runs, and
+ * are wall times on the JVM, so they're an upper bound of the device ones
+ * only as far as regressions go: they catch a path that starts doing work
+ * it shouldn't, not a few percent of slowdown.
+ * <p/>
+ * The transitions are run by the built-in animator on Android 4.1+, and by
+ * the legacy view animations before. Robolectric doesn't run the SDKs older
+ * than Android 4.1, so the legacy cases run with an older SDK version set.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class OverlayMenuBudgetTest {
+
+    /** The number of warm-up runs before a path is measured. */
+    private static final int WARMUP_RUNS = 200;
+
+    /** The number of measured runs of a path. */
+    private static final int MEASURED_RUNS = 1000;
+
+    /** The number of batches the touch handling runs are measured in. */
+    private static final int TOUCH_BATCHES = 10;
+
+    /** The size of the smallest object, in bytes. */
+    private static final long MIN_OBJECT_BYTES = 16;
+
+    /** The number of warm-up runs of the auto-hide expiry, which takes seconds of looper time. */
+    private static final int AUTO_HIDE_WARMUP_RUNS = 20;
+
+    /** The number of measured runs of the auto-hide expiry. */
+    private static final int AUTO_HIDE_MEASURED_RUNS = 100;
+
+    /** The touch handling must not take a sizeable part of a frame. */
+    private static final long TOUCH_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** Showing a visible menu only delays its auto-hiding. */
+    private static final long SHOW_VISIBLE_BUDGET_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    /** Reading the debug status is a field read, done on every traced event: no file checks. */
+    private static final long DEBUG_PEEK_BUDGET_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    /** Requesting a transition only starts it, the frames are drawn later. */
+    private static final long TRANSITION_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(4);
+
+    /** The auto-hide expiry, which starts the hiding transition. */
+    private static final long AUTO_HIDE_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(4);
+
+    /** The auto-hide delay used by the tests, in milliseconds. */
+    private static final int AUTO_HIDE_DELAY = 2000;
+
+    /** About one frame, in milliseconds. */
+    private static final long FRAME_MILLIS = 16;
+
+    /** The most looper tasks run before a transition animation is set. */
+    private static final int MAX_TASKS = 10;
+
+    /** Enough time for any transition to finish, in milliseconds. */
+    private static final long TRANSITION_SETTLE_MILLIS = 1000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private ActivityController<Activity> mController;
+    private ViewGroup mWrapper;
+    private OverlayMenu mMenu;
+    private ShadowLooper mLooper;
+    private long mVisibleAt;
+    private int mVisibleChanges;
+    private int mGoneChanges;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue("The JVM can't count the thread allocations.",
+                          THREADS.isThreadAllocatedMemorySupported());
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        // Robolectric drops the pending messages between the tests, including
+        // the auto-hide scheduler tick: start each test with a new scheduler
+        AutoHideScheduler.resetInstance();
+
+        mController = Robolectric.buildActivity(Activity.class).setup();
+        final Activity activity = mController.get();
+
+        mWrapper = (ViewGroup) LayoutInflater.from(activity).inflate(R.layout.overlay_menu_wrapper, null);
+        mMenu = (OverlayMenu) mWrapper.findViewById(R.id.overlay_menu);
+        mMenu.setOnMenuStateChangeListener(new OverlayMenu.OnMenuStateChangeListener() {
+
+            @Override
+            public void onStateChanged(int visibilityState) {
+                if (visibilityState == View.VISIBLE) {
+                    mVisibleAt = SystemClock.uptimeMillis();
+                    mVisibleChanges++;
+                }
+                else {
+                    mGoneChanges++;
+                }
+            }
+        });
+        activity.setContentView(mWrapper);
+
+        // Like on a device, posted messages only run when the looper gets to them
+        mLooper = ShadowLooper.getShadowMainLooper();
+        mLooper.pause();
+        mLooper.idle();
+    }
+
+    @After
+    public void tearDown() {
+        if (mController != null) {
+            mController.pause().stop().destroy();
+        }
+    }
+
+    @Test
+    public void inflatedMenuUsesTheLayoutAttributes() {
+        // lazyInit: nothing is built until the menu is needed
+        assertEquals("The buttons shouldn't be built before the menu is shown.", 0, mMenu.getChildCount());
+
+        assertFalse(mMenu.isCompactRendering());
+        assertTrue(mMenu.getHardwareLayerAnimationEnabled());
+        assertEquals(AUTO_HIDE_DELAY, mMenu.getAutoHideDelay());
+        assertEquals(View.VISIBLE, mMenu.getLeftButtonVisibility());
+        assertEquals(View.VISIBLE, mMenu.getRightButtonVisibility());
+
+        showAndSettle();
+        assertEquals(2, mMenu.getChildCount());
+        assertEquals(View.VISIBLE, mMenu.getRightButton().getVisibility());
+        assertTrue("The menu should be at the bottom of the wrapper.",
+                   mMenu.getBottom() == mWrapper.getHeight() && mMenu.getHeight() < mWrapper.getHeight());
+    }
+
+    @Test
+    public void firstShowStartsWithTheButtonsLowered() {
+        mMenu.showMenu();
+        // Stop once the menu, hidden until now, has been laid out
+        for (int i = 0; i < MAX_TASKS && mMenu.getHeight() == 0; i++) {
+            mLooper.runOneTask();
+        }
+
+        assertTrue("The menu should have been laid out.", mMenu.getHeight() > 0);
+        assertTrue("The menu should be appearing.", mMenu.isShowing());
+        assertEquals("The buttons should start from below the menu.", (float) mMenu.getHeight(),
+                     mMenu.getLeftButton().getTranslationY(), 0f);
+    }
+
+    @Test
+    public void showMenuShowsTheMenuWithinBudget() {
+        final long nanos = timeShowHideCycles(true);
+
+        assertTrue("The menu should be visible.", mMenu.isMenuVisible());
+        assertEquals(WARMUP_RUNS + MEASURED_RUNS, mVisibleChanges);
+        assertWithinBudget("showMenu()", nanos, TRANSITION_BUDGET_NANOS);
+    }
+
+    @Test
+    public void hideMenuHidesTheMenuWithinBudget() {
+        final long nanos = timeShowHideCycles(false);
+
+        assertFalse("The menu should be hidden.", mMenu.isMenuVisible());
+        assertEquals(WARMUP_RUNS + MEASURED_RUNS, mGoneChanges);
+        assertWithinBudget("hideMenu()", nanos, TRANSITION_BUDGET_NANOS);
+    }
+
+    @Test
+    public void showMenuWhenVisibleDoesNotAllocate() {
+        showAndSettle();
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            mMenu.showMenu();
+        }
+
+        final long startBytes = allocatedBytes();
+        final long startNanos = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            mMenu.showMenu();
+        }
+        final long nanos = System.nanoTime() - startNanos;
+        final long bytes = allocatedBytes() - startBytes;
+
+        assertEquals("showMenu() on a visible menu allocated " + bytes + " bytes.", 0L, bytes);
+        assertWithinBudget("showMenu() on a visible menu", nanos / MEASURED_RUNS, SHOW_VISIBLE_BUDGET_NANOS);
+        assertEquals("Showing a visible menu mustn't notify a state change.", 1, mVisibleChanges);
+    }
+
+    @Test
+    public void showMenuWhenVisibleDelaysAutoHiding() {
+        showAndSettle();
+
+        mLooper.idle(AUTO_HIDE_DELAY / 2, TimeUnit.MILLISECONDS);
+        mMenu.showMenu();
+        mLooper.idle(AUTO_HIDE_DELAY * 3 / 4, TimeUnit.MILLISECONDS);
+
+        assertTrue("The auto-hide deadline should have been delayed.", mMenu.isMenuVisible());
+    }
+
+    @Test
+    public void autoHideExpiryHidesTheMenuWithinBudget() {
+        long totalNanos = 0L;
+        for (int i = 0; i < AUTO_HIDE_WARMUP_RUNS + AUTO_HIDE_MEASURED_RUNS; i++) {
+            showAndSettle();
+
+            // The countdown starts when the menu is fully visible. Stop just
+            // short of the deadline, and time the step that fires it
+            final long deadline = mVisibleAt + AUTO_HIDE_DELAY;
+            mLooper.idle(deadline - AutoHideScheduler.TICK_DURATION - SystemClock.uptimeMillis(),
+                         TimeUnit.MILLISECONDS);
+            assertTrue("The menu shouldn't hide before the deadline.", mMenu.isMenuVisible());
+
+            final long startNanos = System.nanoTime();
+            mLooper.idle(2 * AutoHideScheduler.TICK_DURATION, TimeUnit.MILLISECONDS);
+            if (i >= AUTO_HIDE_WARMUP_RUNS) {
+                totalNanos += System.nanoTime() - startNanos;
+            }
+
+            mLooper.idle(TRANSITION_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+            assertFalse("The menu should have hidden itself.", mMenu.isMenuVisible());
+        }
+
+        assertEquals(AUTO_HIDE_WARMUP_RUNS + AUTO_HIDE_MEASURED_RUNS, mGoneChanges);
+        assertWithinBudget("The auto-hide expiry", totalNanos / AUTO_HIDE_MEASURED_RUNS, AUTO_HIDE_BUDGET_NANOS);
+    }
+
+    @Test
+    public void touchHandlingDoesNotAllocate() {
+        showAndSettle();
+        final MotionEvent[] gesture = obtainGesture(mMenu, mMenu.getLeftButton());
+        dropEventsChecker(mMenu.getLeftButton());
+        dropEventsChecker(mMenu.getRightButton());
+
+        // The same gesture, on the same buttons in a plain layout: its
+        // allocations are Robolectric's instrumentation of the framework
+        // dispatching, which is left out of the menu ones
+        final RelativeLayout baseline = addBaselineLayout();
+        final MotionEvent[] baselineGesture = obtainGesture(baseline, baseline.getChildAt(0));
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            dispatch(mMenu, gesture);
+            dispatch(baseline, baselineGesture);
+            mLooper.idle();
+        }
+
+        // The runs are measured in batches, and the median batch is checked:
+        // an allocation made on every gesture shows up in all the batches, the
+        // one-off allocations of the JVM and of Robolectric only in a few
+        final long[] extraBytes = new long[TOUCH_BATCHES];
+        for (int batch = 0; batch < TOUCH_BATCHES; batch++) {
+            for (int i = 0; i < MEASURED_RUNS / TOUCH_BATCHES; i++) {
+                long startBytes = allocatedBytes();
+                dispatch(mMenu, gesture);
+                extraBytes[batch] += allocatedBytes() - startBytes;
+
+                startBytes = allocatedBytes();
+                dispatch(baseline, baselineGesture);
+                extraBytes[batch] -= allocatedBytes() - startBytes;
+
+                // Run the click and pressed state callbacks the buttons posted
+                mLooper.idle();
+            }
+        }
+
+        recycle(gesture);
+        recycle(baselineGesture);
+        assertTrue("The menu should still be visible.", mMenu.isMenuVisible());
+        Arrays.sort(extraBytes);
+        final long medianBytes = extraBytes[TOUCH_BATCHES / 2];
+        // An allocation made on every gesture adds up to at least one object per run
+        assertTrue("dispatchTouchEvent() allocated " + medianBytes + " bytes more than a plain layout in " +
+                   MEASURED_RUNS / TOUCH_BATCHES + " runs.",
+                   medianBytes < MIN_OBJECT_BYTES * (MEASURED_RUNS / TOUCH_BATCHES));
+    }
+
+    @Test
+    public void dispatchTouchEventIsWithinBudget() {
+        showAndSettle();
+        final MotionEvent[] gesture = obtainGesture(mMenu, mMenu.getLeftButton());
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            dispatch(mMenu, gesture);
+            // Run the click and pressed state callbacks the buttons posted
+            mLooper.idle();
+        }
+
+        long nanos = 0L;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            final long startNanos = System.nanoTime();
+            dispatch(mMenu, gesture);
+            nanos += System.nanoTime() - startNanos;
+            mLooper.idle();
+        }
+
+        recycle(gesture);
+        assertWithinBudget("dispatchTouchEvent()", nanos / ((long) gesture.length * MEASURED_RUNS),
+                           TOUCH_BUDGET_NANOS);
+        assertTrue("The menu should still be visible.", mMenu.isMenuVisible());
+    }
+
+    @Test
+    public void touchOnTheButtonsSuspendsAutoHiding() {
+        showAndSettle();
+
+        final ImageButton button = mMenu.getLeftButton();
+        final float x = button.getLeft() + button.getWidth() / 2f;
+        final float y = button.getTop() + button.getHeight() / 2f;
+        final long downTime = SystemClock.uptimeMillis();
+        final MotionEvent down = MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_DOWN, x, y, 0);
+        mMenu.dispatchTouchEvent(down);
+        down.recycle();
+
+        mLooper.idle(AUTO_HIDE_DELAY * 2, TimeUnit.MILLISECONDS);
+        assertTrue("The menu mustn't hide while it's being touched.", mMenu.isMenuVisible());
+
+        final MotionEvent up = MotionEvent.obtain(downTime, SystemClock.uptimeMillis(), MotionEvent.ACTION_UP,
+                                                  x, y, 0);
+        mMenu.dispatchTouchEvent(up);
+        up.recycle();
+
+        mLooper.idle(AUTO_HIDE_DELAY + TRANSITION_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+        assertFalse("The menu should hide once the touch ends.", mMenu.isMenuVisible());
+    }
+
+    @Test
+    public void peekDebugDoesNotAllocateNorBlock() {
+        // The marker files aren't there: nothing is traced by the other tests either
+        assertFalse("The debug mode should be off.", DebugHelper.peekDebug());
+
+        boolean debug = false;
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            debug |= DebugHelper.peekDebug() | DebugHelper.peekVerboseDebug();
+        }
+
+        final long startBytes = allocatedBytes();
+        final long startNanos = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            debug |= DebugHelper.peekDebug() | DebugHelper.peekVerboseDebug();
+        }
+        final long nanos = System.nanoTime() - startNanos;
+        final long bytes = allocatedBytes() - startBytes;
+
+        assertFalse(debug);
+        assertEquals("peekDebug() and peekVerboseDebug() allocated " + bytes + " bytes.", 0L, bytes);
+        assertWithinBudget("peekDebug() and peekVerboseDebug()", nanos / MEASURED_RUNS, DEBUG_PEEK_BUDGET_NANOS);
+    }
+
+    @Test
+    public void tracingWithDebugOffDoesNotAllocate() {
+        assertFalse("The debug mode should be off.", DebugHelper.peekDebug());
+        OverlayMenu.getEventTracer().clear();
+        final int visibility = mMenu.getLeftButtonVisibility();
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            mMenu.setLeftButtonVisibility(visibility);
+        }
+
+        final long startBytes = allocatedBytes();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            mMenu.setLeftButtonVisibility(visibility);
+        }
+        final long bytes = allocatedBytes() - startBytes;
+
+        assertEquals("A traced call allocated " + bytes + " bytes with the debug mode off.", 0L, bytes);
+
+        final StringWriter dump = new StringWriter();
+        OverlayMenu.getEventTracer().dump(new PrintWriter(dump));
+        assertFalse("Nothing should be traced with the debug mode off.",
+                    dump.toString().contains("LEFT_BUTTON_VISIBILITY"));
+    }
+
+    @Test
+    public void legacyAnimationsShowAndHideTheMenuWithinBudget() {
+        useLegacyAnimations();
+        // With a transition listener the frames are tracked by the pre-draw listener
+        final StringBuilder transitions = recordTransitions();
+
+        final long showNanos = timeShowHideCycles(true);
+        assertTrue("The menu should be visible.", mMenu.isMenuVisible());
+        assertEquals(WARMUP_RUNS + MEASURED_RUNS, mVisibleChanges);
+        assertWithinBudget("showMenu() with the legacy animations", showNanos, TRANSITION_BUDGET_NANOS);
+
+        mMenu.hideMenu();
+        mLooper.idle(TRANSITION_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+        final long hideNanos = timeShowHideCycles(false);
+        assertFalse("The menu should be hidden.", mMenu.isMenuVisible());
+        assertEquals(2 * (WARMUP_RUNS + MEASURED_RUNS), mGoneChanges);
+        assertWithinBudget("hideMenu() with the legacy animations", hideNanos, TRANSITION_BUDGET_NANOS);
+        assertTrue("The last transition should have ended.", transitions.toString().endsWith("<hide>"));
+    }
+
+    @Test
+    public void legacyAnimationsReverseAnInterruptedShow() {
+        useLegacyAnimations();
+        final StringBuilder transitions = recordTransitions();
+
+        mMenu.showMenu();
+        runUntilAnimationIsSet();
+        assertTrue("The menu should be appearing.", mMenu.isShowing());
+
+        mMenu.hideMenu();
+        assertTrue("The menu should be disappearing.", mMenu.isHiding());
+        mLooper.idle(TRANSITION_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+
+        assertFalse("The menu should have hidden.", mMenu.isMenuVisible());
+        assertFalse(mMenu.isAnimating());
+        assertEquals(1, mGoneChanges);
+        // The appearing animation never got to its first frame
+        assertEquals("<hide>", transitions.toString());
+    }
+
+    @Test
+    public void legacyAnimationsReverseAnInterruptedHide() {
+        useLegacyAnimations();
+        showAndSettle();
+        final StringBuilder transitions = recordTransitions();
+
+        mMenu.hideMenu();
+        runUntilAnimationIsSet();
+        assertTrue("The menu should be disappearing.", mMenu.isHiding());
+
+        mMenu.showMenu();
+        assertTrue("The menu should be appearing.", mMenu.isShowing());
+        mLooper.idle(TRANSITION_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+
+        assertTrue("The menu should have appeared.", mMenu.isMenuVisible());
+        assertFalse(mMenu.isAnimating());
+        assertEquals(0, mGoneChanges);
+        // The hiding animation never got to its first frame
+        assertEquals("<show>", transitions.toString());
+    }
+
+    /**
+     * Makes the menu run its transitions with the legacy view animations, as
+     * it does before Android 4.1. Robolectric resets the SDK version after
+     * each test.
+     */
+    private static void useLegacyAnimations() {
+        ReflectionHelpers.setStaticField(Build.VERSION.class, "SDK_INT",
+                                         Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1);
+    }
+
+    /**
+     * Runs the looper until the menu view animation is set, and stops before
+     * its first frame. Robolectric runs all the frames of a view animation in
+     * a single task, so that's the only point a transition can be interrupted.
+     */
+    private void runUntilAnimationIsSet() {
+        for (int i = 0; i < MAX_TASKS && !isAnimationSet(); i++) {
+            mLooper.runOneTask();
+        }
+        assertTrue("The menu animation should have been set.", isAnimationSet());
+    }
+
+    /**
+     * Gets a value indicating whether the menu view animation is set and not
+     * started yet.
+     *
+     * @return Returns true if the animation is about to start.
+     */
+    private boolean isAnimationSet() {
+        final Animation animation = mMenu.getAnimation();
+        return animation != null && !animation.hasStarted();
+    }
+
+    /**
+     * Records the starts and ends of the menu transitions.
+     *
+     * @return Returns the record, e.g. "&lt;show&gt;" for a transition
+     *         that has started and ended.
+     */
+    private StringBuilder recordTransitions() {
+        final StringBuilder transitions = new StringBuilder();
+        mMenu.addOnMenuTransitionListener(new OverlayMenu.OnMenuTransitionListener() {
+
+            @Override
+            public void onTransitionStart(OverlayMenu menu, boolean showing) {
+                transitions.append(showing ? "<show" : "<hide");
+            }
+
+            @Override
+            public void onTransitionProgress(OverlayMenu menu, boolean showing, float progress) {
+            }
+
+            @Override
+            public void onTransitionEnd(OverlayMenu menu, boolean showing) {
+                transitions.append('>');
+            }
+        });
+        return transitions;
+    }
+
+    /**
+     * Adds a plain layout with two buttons like the menu ones, in the same
+     * positions, to compare the menu touch handling with the framework one.
+     *
+     * @return Returns the layout, laid out.
+     */
+    private RelativeLayout addBaselineLayout() {
+        final Activity activity = mController.get();
+        final RelativeLayout baseline = new RelativeLayout(activity);
+        addBaselineButton(baseline, mMenu.getLeftButton(), R.drawable.menu_bg_left, R.drawable.ic_menu_back);
+        addBaselineButton(baseline, mMenu.getRightButton(), R.drawable.menu_bg_right, R.drawable.ic_menu_list);
+
+        mWrapper.addView(baseline, new ViewGroup.LayoutParams(mMenu.getWidth(), mMenu.getHeight()));
+        mLooper.idle(FRAME_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals("The plain layout should have been laid out.", mMenu.getWidth(), baseline.getWidth());
+        return baseline;
+    }
+
+    /**
+     * Adds a button to the plain layout, like a menu one.
+     *
+     * @param baseline     The plain layout.
+     * @param menuButton   The menu button to copy the bounds of.
+     * @param backgroundId The button background resource ID.
+     * @param iconId       The button icon resource ID.
+     */
+    @SuppressWarnings("deprecation")
+    private static void addBaselineButton(RelativeLayout baseline, View menuButton, int backgroundId, int iconId) {
+        final ImageButton button = new ImageButton(baseline.getContext());
+        dropEventsChecker(button);
+        button.setBackgroundDrawable(baseline.getResources().getDrawable(backgroundId));
+        button.setImageResource(iconId);
+
+        final RelativeLayout.LayoutParams params =
+                new RelativeLayout.LayoutParams(menuButton.getWidth(), menuButton.getHeight());
+        params.leftMargin = menuButton.getLeft();
+        params.topMargin = menuButton.getTop();
+        baseline.addView(button, params);
+    }
+
+    /**
+     * Drops the framework touch events checker of a view, which only runs on
+     * the engineering builds of Android. Robolectric runs it, and it logs the
+     * events a layout sends to its children, whose copies lose their source.
+     *
+     * @param view The view.
+     */
+    private static void dropEventsChecker(View view) {
+        ReflectionHelpers.setField(view, "mInputEventConsistencyVerifier", null);
+    }
+
+    /**
+     * Shows and hides the menu, letting each transition finish, and times
+     * either of the two requests.
+     *
+     * @param timeShow True to time the showMenu() calls, false to time the hideMenu() ones.
+     *
+     * @return Returns the average time of a measured request, in nanoseconds.
+     */
+    private long timeShowHideCycles(boolean timeShow) {
+        long totalNanos = 0L;
+        for (int i = 0; i < WARMUP_RUNS + MEASURED_RUNS; i++) {
+            long startNanos = System.nanoTime();
+            mMenu.showMenu();
+            final long showNanos = System.nanoTime() - startNanos;
+            mLooper.idle(TRANSITION_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+            assertTrue("The menu should have appeared.", mMenu.isMenuVisible());
+
+            if (!timeShow) {
+                // Leave the menu visible after the last cycle when timing the show requests
+                startNanos = System.nanoTime();
+            }
+            else if (i == WARMUP_RUNS + MEASURED_RUNS - 1) {
+                if (i >= WARMUP_RUNS) {
+                    totalNanos += showNanos;
+                }
+                break;
+            }
+            mMenu.hideMenu();
+            final long hideNanos = System.nanoTime() - startNanos;
+            mLooper.idle(TRANSITION_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+            assertFalse("The menu should have hidden.", mMenu.isMenuVisible());
+
+            if (i >= WARMUP_RUNS) {
+                totalNanos += timeShow ? showNanos : hideNanos;
+            }
+        }
+        return totalNanos / MEASURED_RUNS;
+    }
+
+    /** Shows the menu, and lets the transition finish. */
+    private void showAndSettle() {
+        mMenu.showMenu();
+        mLooper.idle(TRANSITION_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue("The menu should have appeared.", mMenu.isMenuVisible());
+    }
+
+    /**
+     * Obtains the events of a press on a button, and of a tap outside of the
+     * buttons. They're obtained up front, so that the tests don't count their
+     * allocations.
+     *
+     * @param parent The view the events are dispatched to.
+     * @param button The pressed button, a child of the parent.
+     *
+     * @return Returns the events, in dispatching order.
+     */
+    private static MotionEvent[] obtainGesture(View parent, View button) {
+        assertTrue("The button should have been laid out.", button.getWidth() > 0 && button.getHeight() > 0);
+
+        final float x = button.getLeft() + button.getWidth() / 2f;
+        final float y = button.getTop() + button.getHeight() / 2f;
+        final float outsideX = parent.getWidth() / 2f;
+        final long downTime = SystemClock.uptimeMillis();
+        final MotionEvent[] events = new MotionEvent[] {
+                MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_DOWN, x, y, 0),
+                MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_MOVE, x + 1f, y, 0),
+                MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_UP, x + 1f, y, 0),
+                MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_DOWN, outsideX, 0f, 0),
+                MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_UP, outsideX, 0f, 0)
+        };
+        for (MotionEvent event : events) {
+            // Like the real ones: the framework events checker logs the others
+            event.setSource(InputDevice.SOURCE_TOUCHSCREEN);
+        }
+        return events;
+    }
+
+    /**
+     * Dispatches touch events to a view.
+     *
+     * @param view   The view.
+     * @param events The events to dispatch, in order.
+     */
+    private static void dispatch(View view, MotionEvent[] events) {
+        for (MotionEvent event : events) {
+            view.dispatchTouchEvent(event);
+        }
+    }
+
+    /**
+     * Recycles touch events.
+     *
+     * @param events The events to recycle.
+     */
+    private static void recycle(MotionEvent[] events) {
+        for (MotionEvent event : events) {
+            event.recycle();
+        }
+    }
+
+    /**
+     * Gets the number of bytes allocated by the test thread so far.
+     *
+     * @return Returns the number of bytes allocated.
+     */
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Fails if a measured time is over its budget.
+     *
+     * @param path        The measured code path.
+     * @param nanos       The measured time, in nanoseconds.
+     * @param budgetNanos The time budget, in nanoseconds.
+     */
+    private static void assertWithinBudget(String path, long nanos, long budgetNanos) {
+        assertTrue(path + " took " + nanos / 1000L + "us, the budget is " + budgetNanos / 1000L + "us.",
+                   nanos <= budgetNanos);
+    }
+}